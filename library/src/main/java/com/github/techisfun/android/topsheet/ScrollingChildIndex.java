@@ -0,0 +1,233 @@
+package com.github.techisfun.android.topsheet;
+
+import android.graphics.Rect;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewParent;
+
+import java.util.ArrayList;
+
+import androidx.core.view.NestedScrollingChild;
+import androidx.recyclerview.widget.RecyclerView;
+
+/**
+ * Index of the scrolling descendants of a sheet. It is rebuilt when the sheet hierarchy changes,
+ * so that the scrolling child under a touch point can be resolved without walking the whole
+ * hierarchy on every gesture.
+ * <p>
+ * Horizontal scrolling children, e.g. the RecyclerView of a ViewPager2, move and recycle their
+ * children without requesting a layout of the sheet. The index records a signature of each of
+ * them, see {@link #isStale()}, so that it can be rebuilt once they changed.
+ */
+final class ScrollingChildIndex {
+
+    private static final boolean RECYCLER_VIEW_AVAILABLE = isClassAvailable(
+            "androidx.recyclerview.widget.RecyclerView");
+
+    private final ArrayList<View> mViews = new ArrayList<>();
+
+    private int mCount;
+
+    /**
+     * The horizontal scrolling children the index descended into.
+     */
+    private final ArrayList<View> mContainers = new ArrayList<>();
+
+    private int[] mContainerSignatures = new int[4];
+
+    private int mContainerCount;
+
+    /**
+     * Collects the scrolling descendants of {@code sheet}. Scrolling children nested in a
+     * vertically scrolling child are left to the outer one, while those of a horizontally
+     * scrolling child are indexed in its place.
+     *
+     * @param sheet The sheet, laid out.
+     */
+    void rebuild(View sheet) {
+        clear();
+        collect(sheet);
+    }
+
+    void clear() {
+        for (int i = 0; i < mCount; i++) {
+            mViews.set(i, null);
+        }
+        mCount = 0;
+        for (int i = 0; i < mContainerCount; i++) {
+            mContainers.set(i, null);
+        }
+        mContainerCount = 0;
+    }
+
+    /**
+     * @return Whether a horizontal scrolling child moved or replaced its children since the index
+     * was built, in which case the index may miss some of the scrolling children.
+     */
+    boolean isStale() {
+        for (int i = 0; i < mContainerCount; i++) {
+            if (signature(mContainers.get(i)) != mContainerSignatures[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean contains(View view) {
+        for (int i = 0; i < mCount; i++) {
+            if (mViews.get(i) == view) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The first scrolling child in depth-first order, or null if there is none.
+     */
+    View first() {
+        return mCount > 0 ? mViews.get(0) : null;
+    }
+
+    /**
+     * Finds the scrolling child under a point. When scrolling children overlap, the one drawn last
+     * wins. The bounds of each candidate are computed from its current position, walking up its
+     * ancestors, as pages of a ViewPager and similar move without being laid out again.
+     *
+     * @param sheet The sheet the index was built for.
+     * @param x     The x coordinate, relative to the sheet.
+     * @param y     The y coordinate, relative to the sheet.
+     * @param outBounds Set to the bounds of the found child relative to the sheet, or emptied if
+     *                  there is none.
+     * @return The scrolling child under the point, or null if there is none.
+     */
+    View find(View sheet, int x, int y, Rect outBounds) {
+        for (int i = mCount - 1; i >= 0; i--) {
+            View view = mViews.get(i);
+            if (view.isShown() && getBounds(sheet, view, outBounds) && outBounds.contains(x, y)) {
+                return view;
+            }
+        }
+        outBounds.setEmpty();
+        return null;
+    }
+
+    /**
+     * Computes the bounds of {@code view} relative to {@code sheet}.
+     *
+     * @return Whether {@code view} is still a descendant of {@code sheet}.
+     */
+    private static boolean getBounds(View sheet, View view, Rect outBounds) {
+        int left = 0;
+        int top = 0;
+        View v = view;
+        while (v != sheet) {
+            ViewParent parent = v.getParent();
+            if (!(parent instanceof View)) {
+                return false;
+            }
+            View ancestor = (View) parent;
+            left += v.getLeft() + (int) v.getTranslationX() - ancestor.getScrollX();
+            top += v.getTop() + (int) v.getTranslationY() - ancestor.getScrollY();
+            v = ancestor;
+        }
+        outBounds.set(left, top, left + view.getWidth(), top + view.getHeight());
+        return true;
+    }
+
+    private void collect(View view) {
+        boolean scrolling = view instanceof NestedScrollingChild;
+        if (scrolling && scrollsVertically(view)) {
+            add(view);
+            return;
+        }
+        int count = mCount;
+        if (view instanceof ViewGroup) {
+            // Horizontal scrolling children, e.g. a ViewPager2, may hold vertical lists
+            ViewGroup group = (ViewGroup) view;
+            if (scrolling) {
+                addContainer(group);
+            }
+            for (int i = 0, childCount = group.getChildCount(); i < childCount; i++) {
+                collect(group.getChildAt(i));
+            }
+        }
+        if (scrolling && mCount == count) {
+            // A horizontal scrolling child with no vertical scrolling descendants
+            add(view);
+        }
+    }
+
+    private void add(View view) {
+        if (mCount < mViews.size()) {
+            mViews.set(mCount, view);
+        } else {
+            mViews.add(view);
+        }
+        mCount++;
+    }
+
+    private void addContainer(ViewGroup container) {
+        if (mContainerCount < mContainers.size()) {
+            mContainers.set(mContainerCount, container);
+        } else {
+            mContainers.add(container);
+        }
+        if (mContainerCount == mContainerSignatures.length) {
+            int[] signatures = new int[mContainerCount * 2];
+            System.arraycopy(mContainerSignatures, 0, signatures, 0, mContainerCount);
+            mContainerSignatures = signatures;
+        }
+        mContainerSignatures[mContainerCount] = signature(container);
+        mContainerCount++;
+    }
+
+    /**
+     * @return A value that changes when {@code container} scrolls or replaces its children.
+     */
+    private static int signature(View container) {
+        ViewGroup group = (ViewGroup) container;
+        int count = group.getChildCount();
+        View first = count > 0 ? group.getChildAt(0) : null;
+        int signature = 31 * count + System.identityHashCode(first);
+        return 31 * signature + (first != null ? first.getLeft() : 0);
+    }
+
+    /**
+     * @return Whether the scroll axis of {@code view} is vertical, whether or not its content can
+     * currently scroll.
+     */
+    private static boolean scrollsVertically(View view) {
+        if (RECYCLER_VIEW_AVAILABLE && RecyclerViews.isRecyclerView(view)) {
+            return RecyclerViews.scrollsVertically(view);
+        }
+        // Other scrolling children, e.g. NestedScrollView, are vertical unless they only scroll
+        // horizontally
+        return view.canScrollVertically(1) || view.canScrollVertically(-1)
+                || !(view.canScrollHorizontally(1) || view.canScrollHorizontally(-1));
+    }
+
+    private static boolean isClassAvailable(String className) {
+        try {
+            Class.forName(className, false, ScrollingChildIndex.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * RecyclerView is an optional dependency: this class is only loaded when it is available.
+     */
+    private static final class RecyclerViews {
+
+        static boolean isRecyclerView(View view) {
+            return view instanceof RecyclerView;
+        }
+
+        static boolean scrollsVertically(View view) {
+            RecyclerView.LayoutManager layoutManager = ((RecyclerView) view).getLayoutManager();
+            return layoutManager == null || layoutManager.canScrollVertically();
+        }
+    }
+}
@@ -19,9 +19,11 @@ package com.github.techisfun.android.topsheet;
 
 import android.content.Context;
 import android.content.res.TypedArray;
+import android.graphics.Rect;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.util.AttributeSet;
+import android.util.TypedValue;
 import android.view.MotionEvent;
 import android.view.VelocityTracker;
 import android.view.View;
@@ -38,7 +40,7 @@ import androidx.coordinatorlayout.widget.CoordinatorLayout;
 import androidx.core.os.ParcelableCompat;
 import androidx.core.os.ParcelableCompatCreatorCallbacks;
 import androidx.core.view.MotionEventCompat;
-import androidx.core.view.NestedScrollingChild;
+import androidx.core.view.NestedScrollingChild2;
 import androidx.core.view.VelocityTrackerCompat;
 import androidx.core.view.ViewCompat;
 import androidx.customview.view.AbsSavedState;
@@ -109,9 +111,25 @@ public class TopSheetBehavior<V extends View> extends CoordinatorLayout.Behavior
     public @interface State {
     }
 
-    private static final float HIDE_THRESHOLD = 0.5f;
+    /**
+     * Restore nothing but the state of the sheet from its saved instance state.
+     */
+    public static final int SAVE_NONE = 0;
 
-    private static final float HIDE_FRICTION = 0.1f;
+    /**
+     * Restore the peek height of the sheet from its saved instance state.
+     */
+    public static final int SAVE_PEEK_HEIGHT = 0x1;
+
+    /**
+     * @hide
+     */
+    @IntDef(flag = true, value = {SAVE_NONE, SAVE_PEEK_HEIGHT})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface SaveFlags {
+    }
+
+    static final int NO_TOP = Integer.MIN_VALUE;
 
     private float mMaximumVelocity;
 
@@ -125,23 +143,60 @@ public class TopSheetBehavior<V extends View> extends CoordinatorLayout.Behavior
 
     private boolean mSkipCollapsed;
 
+    @SaveFlags
+    private int mSaveFlags = SAVE_NONE;
+
+    private boolean mAnimateContentResize;
+
+    private int mLastChildHeight;
+
+    private int mPendingTop = NO_TOP;
+
     @State
     private int mState = STATE_COLLAPSED;
 
     private ViewDragHelper mViewDragHelper;
 
+    private boolean mUseSharedEngine;
+
+    private TopSheetEngine mEngine;
+
+    private SettleRunnable mSettleRunnable;
+
+    /**
+     * The state the sheet settles to, while it is {@link #STATE_SETTLING}.
+     */
+    @State
+    private int mSettleTargetState;
+
     private boolean mIgnoreEvents;
 
     private int mLastNestedScrollDy;
 
     private boolean mNestedScrolled;
 
+    private boolean mNestedFlinging;
+
     private int mParentHeight;
 
     private WeakReference<V> mViewRef;
 
     private WeakReference<View> mNestedScrollingChildRef;
 
+    private final ScrollingChildIndex mScrollingChildIndex = new ScrollingChildIndex();
+
+    /**
+     * Bounds of the scrolling child the current gesture started on, relative to the sheet so that
+     * they stay valid while the sheet moves.
+     */
+    private final Rect mScrollingChildBounds = new Rect();
+
+    /**
+     * Whether touch events are hit-tested with {@link CoordinatorLayout#isPointInChildBounds}
+     * instead of the cached bounds, which is the former behavior, kept for the hit test benchmark.
+     */
+    boolean mDescendantHitTest;
+
     private TopSheetCallback mCallback;
 
     private VelocityTracker mVelocityTracker;
@@ -152,6 +207,8 @@ public class TopSheetBehavior<V extends View> extends CoordinatorLayout.Behavior
 
     private boolean mTouchingScrollingChild;
 
+    private final TopSheetFlightRecorder mFlightRecorder = new TopSheetFlightRecorder();
+
     /**
      * Default constructor for instantiating TopSheetBehaviors.
      */
@@ -167,11 +224,17 @@ public class TopSheetBehavior<V extends View> extends CoordinatorLayout.Behavior
     public TopSheetBehavior(Context context, AttributeSet attrs) {
         super(context, attrs);
         TypedArray a = context.obtainStyledAttributes(attrs,
-                R.styleable.BottomSheetBehavior_Layout);
-        setPeekHeight(a.getDimensionPixelSize(
-                R.styleable.BottomSheetBehavior_Layout_behavior_peekHeight, 0));
-        setHideable(a.getBoolean(R.styleable.BottomSheetBehavior_Layout_behavior_hideable, false));
-        setSkipCollapsed(a.getBoolean(R.styleable.BottomSheetBehavior_Layout_behavior_skipCollapsed,
+                R.styleable.TopSheetBehavior_Layout);
+        TypedValue value = a.peekValue(R.styleable.TopSheetBehavior_Layout_behavior_peekHeight);
+        if (value != null && value.type == TypedValue.TYPE_DIMENSION) {
+            setPeekHeight(a.getDimensionPixelSize(
+                    R.styleable.TopSheetBehavior_Layout_behavior_peekHeight, 0));
+        } else {
+            // "auto" is not supported by top sheets
+            setPeekHeight(0);
+        }
+        setHideable(a.getBoolean(R.styleable.TopSheetBehavior_Layout_behavior_hideable, false));
+        setSkipCollapsed(a.getBoolean(R.styleable.TopSheetBehavior_Layout_behavior_skipCollapsed,
                 false));
         a.recycle();
         ViewConfiguration configuration = ViewConfiguration.get(context);
@@ -180,32 +243,78 @@ public class TopSheetBehavior<V extends View> extends CoordinatorLayout.Behavior
 
     @Override
     public Parcelable onSaveInstanceState(CoordinatorLayout parent, V child) {
-        return new SavedState(super.onSaveInstanceState(parent, child), mState);
+        return new SavedState(super.onSaveInstanceState(parent, child), mState, mPeekHeight,
+                child.getTop(), child.getHeight());
     }
 
     @Override
     public void onRestoreInstanceState(CoordinatorLayout parent, V child, Parcelable state) {
         SavedState ss = (SavedState) state;
         super.onRestoreInstanceState(parent, child, ss.getSuperState());
-        // Intermediate states are restored as collapsed state
+        // Restore the geometry before the first layout, so that it places the sheet right away.
+        // The peek height may depend on the configuration, so it is only restored on request
+        if ((mSaveFlags & SAVE_PEEK_HEIGHT) != 0 && ss.peekHeight >= 0) {
+            setPeekHeight(ss.peekHeight);
+        }
         if (ss.state == STATE_DRAGGING || ss.state == STATE_SETTLING) {
+            // Intermediate states are restored as the nearest stable state, without animation
+            if (ss.top != NO_TOP && ss.childHeight > 0) {
+                mState = TopSheetSettle.nearestState(ss.top,
+                        TopSheetSettle.minOffset(ss.childHeight, mPeekHeight), 0);
+            } else {
+                mState = STATE_COLLAPSED;
+            }
+        } else if (ss.state == STATE_HIDDEN && !mHideable) {
             mState = STATE_COLLAPSED;
         } else {
             mState = ss.state;
         }
     }
 
+    @Override
+    public void onDetachedFromLayoutParams() {
+        super.onDetachedFromLayoutParams();
+        // Nothing must keep the sheet, its content or the callback owner reachable from here
+        cancelPendingWork();
+        mCallback = null;
+        mEngine = null;
+        mViewDragHelper = null;
+        mViewRef = null;
+        mNestedScrollingChildRef = null;
+        mScrollingChildIndex.clear();
+    }
+
     @Override
     public boolean onLayoutChild(CoordinatorLayout parent, V child, int layoutDirection) {
+        boolean traced = TopSheetTrace.begin(TopSheetTrace.LAYOUT_CHILD);
+        try {
+            return layoutChild(parent, child, layoutDirection);
+        } finally {
+            TopSheetTrace.end(traced);
+        }
+    }
+
+    private boolean layoutChild(CoordinatorLayout parent, V child, int layoutDirection) {
         if (ViewCompat.getFitsSystemWindows(parent) && !ViewCompat.getFitsSystemWindows(child)) {
             ViewCompat.setFitsSystemWindows(child, true);
         }
         int savedTop = child.getTop();
+        int savedWidth = child.getWidth();
+        int savedHeight = child.getHeight();
+        // Adding or removing views in the sheet requests a layout of it
+        boolean hierarchyChanged = mViewRef == null || mViewRef.get() != child ||
+                child.isLayoutRequested();
         // First let the parent lay it out
         parent.onLayoutChild(child, layoutDirection);
+        // A size change driven by the parent, e.g. in multi-window, moves the children without
+        // requesting a layout of the sheet
+        hierarchyChanged |= child.getWidth() != savedWidth || child.getHeight() != savedHeight;
+        boolean resized = mAnimateContentResize && mLastChildHeight > 0 &&
+                child.getHeight() != mLastChildHeight &&
+                (mState == STATE_EXPANDED || mState == STATE_COLLAPSED);
         // Offset the bottom sheet
         mParentHeight = parent.getHeight();
-        mMinOffset = Math.max(-child.getHeight(), -(child.getHeight() - mPeekHeight));
+        mMinOffset = TopSheetSettle.minOffset(child.getHeight(), mPeekHeight);
         mMaxOffset = 0;
         if (mState == STATE_EXPANDED) {
             ViewCompat.offsetTopAndBottom(child, mMaxOffset);
@@ -216,16 +325,127 @@ public class TopSheetBehavior<V extends View> extends CoordinatorLayout.Behavior
         } else if (mState == STATE_DRAGGING || mState == STATE_SETTLING) {
             ViewCompat.offsetTopAndBottom(child, savedTop - child.getTop());
         }
-        if (mViewDragHelper == null) {
+        if (mUseSharedEngine) {
+            if (mEngine == null) {
+                mEngine = TopSheetEngine.from(parent);
+            }
+        } else if (mViewDragHelper == null) {
             mViewDragHelper = ViewDragHelper.create(parent, mDragCallback);
         }
-        mViewRef = new WeakReference<>(child);
-        mNestedScrollingChildRef = new WeakReference<>(findScrollingChild(child));
+        if (hierarchyChanged) {
+            mViewRef = new WeakReference<>(child);
+            mScrollingChildIndex.rebuild(child);
+            View scroll = mNestedScrollingChildRef != null ? mNestedScrollingChildRef.get() : null;
+            if (scroll == null || !mScrollingChildIndex.contains(scroll)) {
+                mNestedScrollingChildRef = new WeakReference<>(mScrollingChildIndex.first());
+            }
+        }
+        if (mPendingTop != NO_TOP) {
+            applyPendingTop(child);
+        } else if (resized) {
+            animateContentResize(child, savedTop + mLastChildHeight);
+        }
+        mLastChildHeight = child.getHeight();
         return true;
     }
 
+    /**
+     * Restores the geometry of a sheet which is not laid out yet. A sheet in a stable state is
+     * placed at the offset of that state on its first layout, as the sheet height may have changed
+     * since {@code top} was taken. A sheet in an intermediate state is placed at {@code top}, then
+     * settles to {@code targetState}.
+     *
+     * @param state       The state of the sheet.
+     * @param top         The top offset of the sheet, or {@link #NO_TOP} if it is not known.
+     * @param targetState The state a settling sheet was heading to, see
+     *                    {@link #getSettleTargetState()}. A dragged sheet settles to the nearest
+     *                    of {@link #STATE_EXPANDED} and {@link #STATE_COLLAPSED} instead.
+     */
+    void restoreGeometry(@State int state, int top, @State int targetState) {
+        if (state == STATE_DRAGGING || state == STATE_SETTLING) {
+            mState = top != NO_TOP ? state : STATE_COLLAPSED;
+            mPendingTop = top;
+            mSettleTargetState = targetState == STATE_HIDDEN && !mHideable ? STATE_COLLAPSED
+                    : targetState;
+        } else {
+            mState = state == STATE_HIDDEN && !mHideable ? STATE_COLLAPSED : state;
+            mPendingTop = NO_TOP;
+        }
+    }
+
+    /**
+     * @return The current top offset of the sheet, or {@link #NO_TOP} if it is not laid out.
+     */
+    int getCurrentTop() {
+        V child = mViewRef != null ? mViewRef.get() : null;
+        return child != null ? child.getTop() : NO_TOP;
+    }
+
+    /**
+     * @return The state the sheet is settling to, or its current state if it is not settling.
+     */
+    @State
+    int getSettleTargetState() {
+        return mState == STATE_SETTLING ? mSettleTargetState : mState;
+    }
+
+    private void applyPendingTop(View child) {
+        int top = constrain(mPendingTop, mHideable ? -child.getHeight() : mMinOffset, mMaxOffset);
+        mPendingTop = NO_TOP;
+        @State int targetState = mState;
+        if (targetState == STATE_SETTLING) {
+            targetState = mSettleTargetState;
+        } else if (targetState == STATE_DRAGGING) {
+            targetState = TopSheetSettle.nearestState(top, mMinOffset, mMaxOffset);
+        }
+        ViewCompat.offsetTopAndBottom(child, top - child.getTop());
+        startSettling(child, TopSheetSettle.topForState(targetState, mMinOffset, mMaxOffset,
+                child.getHeight()), targetState, 0, false);
+    }
+
+    /**
+     * Called by {@link TopSheetLayout} once it re-measured and laid out its own subtree after a
+     * change of its content size, keeping its bottom edge where it was.
+     */
+    void onContentResized(View child) {
+        if (mViewRef == null || mViewRef.get() != child) {
+            return;
+        }
+        mLastChildHeight = child.getHeight();
+        mMinOffset = TopSheetSettle.minOffset(child.getHeight(), mPeekHeight);
+        mScrollingChildIndex.rebuild(child);
+        if (mState == STATE_EXPANDED || mState == STATE_COLLAPSED) {
+            animateContentResize(child, child.getBottom());
+        } else if (mState == STATE_HIDDEN) {
+            ViewCompat.offsetTopAndBottom(child, -child.getHeight() - child.getTop());
+        }
+    }
+
+    /**
+     * Moves the resized sheet so that its visible edge stays at {@code visibleBottom}, then
+     * animates it to the offset of its current state.
+     */
+    private void animateContentResize(View child, int visibleBottom) {
+        @State int state = mState;
+        int top = state == STATE_EXPANDED ? mMaxOffset : mMinOffset;
+        // Never leave a gap above the sheet
+        int startTop = Math.min(visibleBottom - child.getHeight(), mMaxOffset);
+        ViewCompat.offsetTopAndBottom(child, startTop - child.getTop());
+        dispatchOnSlide(child.getTop());
+        startSettling(child, top, state, 0, false);
+    }
+
     @Override
     public boolean onInterceptTouchEvent(CoordinatorLayout parent, V child, MotionEvent event) {
+        boolean traced = TopSheetTrace.begin(TopSheetTrace.INTERCEPT_TOUCH);
+        try {
+            return interceptTouchEvent(parent, child, event);
+        } finally {
+            TopSheetTrace.end(traced);
+        }
+    }
+
+    private boolean interceptTouchEvent(CoordinatorLayout parent, V child, MotionEvent event) {
         if (!child.isShown()) {
             return false;
         }
@@ -252,16 +472,26 @@ public class TopSheetBehavior<V extends View> extends CoordinatorLayout.Behavior
             case MotionEvent.ACTION_DOWN:
                 int initialX = (int) event.getX();
                 mInitialY = (int) event.getY();
-                View scroll = mNestedScrollingChildRef.get();
-                if (scroll != null && parent.isPointInChildBounds(scroll, initialX, mInitialY)) {
+                // Resolve the scrolling child the gesture starts on, among all of the sheet ones.
+                // Pages of a ViewPager2 change without requesting a layout of the sheet
+                if (mScrollingChildIndex.isStale()) {
+                    mScrollingChildIndex.rebuild(child);
+                }
+                View scroll = mScrollingChildIndex.find(child, initialX - child.getLeft(),
+                        mInitialY - child.getTop(), mScrollingChildBounds);
+                if (scroll != null) {
+                    if (scroll != mNestedScrollingChildRef.get()) {
+                        mNestedScrollingChildRef = new WeakReference<>(scroll);
+                    }
                     mActivePointerId = event.getPointerId(event.getActionIndex());
                     mTouchingScrollingChild = true;
                 }
                 mIgnoreEvents = mActivePointerId == MotionEvent.INVALID_POINTER_ID &&
-                        !parent.isPointInChildBounds(child, initialX, mInitialY);
+                        !(mDescendantHitTest ? parent.isPointInChildBounds(child, initialX,
+                        mInitialY) : isPointInSheet(child, initialX, mInitialY));
                 break;
         }
-        if (!mIgnoreEvents && mViewDragHelper.shouldInterceptTouchEvent(event)) {
+        if (!mIgnoreEvents && shouldInterceptTouchEvent(event)) {
             return true;
         }
         // We have to handle cases that the ViewDragHelper does not capture the bottom sheet because
@@ -270,12 +500,25 @@ public class TopSheetBehavior<V extends View> extends CoordinatorLayout.Behavior
         View scroll = mNestedScrollingChildRef.get();
         return action == MotionEvent.ACTION_MOVE && scroll != null &&
                 !mIgnoreEvents && mState != STATE_DRAGGING &&
-                !parent.isPointInChildBounds(scroll, (int) event.getX(), (int) event.getY()) &&
-                Math.abs(mInitialY - event.getY()) > mViewDragHelper.getTouchSlop();
+                !(mDescendantHitTest
+                        ? parent.isPointInChildBounds(scroll, (int) event.getX(),
+                        (int) event.getY())
+                        : mScrollingChildBounds.contains((int) event.getX() - child.getLeft(),
+                        (int) event.getY() - child.getTop())) &&
+                Math.abs(mInitialY - event.getY()) > getTouchSlop();
     }
 
     @Override
     public boolean onTouchEvent(CoordinatorLayout parent, V child, MotionEvent event) {
+        boolean traced = TopSheetTrace.begin(TopSheetTrace.TOUCH);
+        try {
+            return touchEvent(parent, child, event);
+        } finally {
+            TopSheetTrace.end(traced);
+        }
+    }
+
+    private boolean touchEvent(CoordinatorLayout parent, V child, MotionEvent event) {
         if (!child.isShown()) {
             return false;
         }
@@ -283,7 +526,9 @@ public class TopSheetBehavior<V extends View> extends CoordinatorLayout.Behavior
         if (mState == STATE_DRAGGING && action == MotionEvent.ACTION_DOWN) {
             return true;
         }
-        if (mViewDragHelper != null) {
+        if (mEngine != null) {
+            mEngine.processTouchEvent(event);
+        } else if (mViewDragHelper != null) {
             mViewDragHelper.processTouchEvent(event);
         }
         // Record the velocity
@@ -297,8 +542,13 @@ public class TopSheetBehavior<V extends View> extends CoordinatorLayout.Behavior
         // The ViewDragHelper tries to capture only the top-most View. We have to explicitly tell it
         // to capture the bottom sheet in case it is not captured and the touch slop is passed.
         if (action == MotionEvent.ACTION_MOVE && !mIgnoreEvents) {
-            if (Math.abs(mInitialY - event.getY()) > mViewDragHelper.getTouchSlop()) {
-                mViewDragHelper.captureChildView(child, event.getPointerId(event.getActionIndex()));
+            if (Math.abs(mInitialY - event.getY()) > getTouchSlop()) {
+                int pointerId = event.getPointerId(event.getActionIndex());
+                if (mEngine != null) {
+                    mEngine.captureChildView(child, pointerId);
+                } else {
+                    mViewDragHelper.captureChildView(child, pointerId);
+                }
             }
         }
         return !mIgnoreEvents;
@@ -306,31 +556,55 @@ public class TopSheetBehavior<V extends View> extends CoordinatorLayout.Behavior
 
     @Override
     public boolean onStartNestedScroll(CoordinatorLayout coordinatorLayout, V child,
-                                       View directTargetChild, View target, int nestedScrollAxes) {
-        mLastNestedScrollDy = 0;
-        mNestedScrolled = false;
-        return (nestedScrollAxes & ViewCompat.SCROLL_AXIS_VERTICAL) != 0;
+                                       View directTargetChild, View target, int nestedScrollAxes,
+                                       int type) {
+        boolean vertical = (nestedScrollAxes & ViewCompat.SCROLL_AXIS_VERTICAL) != 0;
+        if (type == ViewCompat.TYPE_TOUCH) {
+            mLastNestedScrollDy = 0;
+            mNestedScrolled = false;
+        } else {
+            // The content is flinging: its momentum is carried into the sheet, which settles
+            // only once the fling is over
+            mNestedFlinging = vertical && target == mNestedScrollingChildRef.get();
+        }
+        return vertical;
     }
 
     @Override
     public void onNestedPreScroll(CoordinatorLayout coordinatorLayout, V child, View target, int dx,
-                                  int dy, int[] consumed) {
+                                  int dy, int[] consumed, int type) {
+        boolean traced = TopSheetTrace.begin(TopSheetTrace.NESTED_PRE_SCROLL);
+        try {
+            nestedPreScroll(coordinatorLayout, child, target, dx, dy, consumed, type);
+        } finally {
+            TopSheetTrace.end(traced);
+        }
+    }
+
+    private void nestedPreScroll(CoordinatorLayout coordinatorLayout, V child, View target, int dx,
+                                 int dy, int[] consumed, int type) {
         View scrollingChild = mNestedScrollingChildRef.get();
         if (target != scrollingChild) {
             return;
         }
+        // A fling moves the sheet like a drag does, but it never hides it
+        boolean touch = type == ViewCompat.TYPE_TOUCH;
+        @State int movingState = touch ? STATE_DRAGGING : STATE_SETTLING;
         int currentTop = child.getTop();
         int newTop = currentTop - dy;
         if (dy > 0) { // Upward
             if (!ViewCompat.canScrollVertically(target, 1)) {
-                if (newTop >= mMinOffset || mHideable) {
+                if (newTop >= mMinOffset || (touch && mHideable)) {
                     consumed[1] = dy;
                     ViewCompat.offsetTopAndBottom(child, -dy);
-                    setStateInternal(STATE_DRAGGING);
+                    setStateInternal(movingState);
                 } else {
-                    consumed[1] = currentTop - mMinOffset;
+                    // Stop at the collapsed offset, never moving the sheet against dy
+                    consumed[1] = Math.max(0, currentTop - mMinOffset);
                     ViewCompat.offsetTopAndBottom(child, -consumed[1]);
-                    setStateInternal(STATE_COLLAPSED);
+                    if (child.getTop() == mMinOffset) {
+                        setStateInternal(STATE_COLLAPSED);
+                    }
                 }
             }
         } else if (dy < 0) { // Downward
@@ -338,7 +612,7 @@ public class TopSheetBehavior<V extends View> extends CoordinatorLayout.Behavior
             if (newTop < mMaxOffset) {
                 consumed[1] = dy;
                 ViewCompat.offsetTopAndBottom(child, -dy);
-                setStateInternal(STATE_DRAGGING);
+                setStateInternal(movingState);
             } else {
                 consumed[1] = currentTop - mMaxOffset;
                 ViewCompat.offsetTopAndBottom(child, -consumed[1]);
@@ -351,64 +625,102 @@ public class TopSheetBehavior<V extends View> extends CoordinatorLayout.Behavior
     }
 
     @Override
-    public void onStopNestedScroll(CoordinatorLayout coordinatorLayout, V child, View target) {
-        if (child.getTop() == mMaxOffset) {
-            setStateInternal(STATE_EXPANDED);
+    public void onNestedScroll(CoordinatorLayout coordinatorLayout, V child, View target,
+                               int dxConsumed, int dyConsumed, int dxUnconsumed, int dyUnconsumed,
+                               int type, int[] consumed) {
+        if (target != mNestedScrollingChildRef.get() || dyUnconsumed == 0) {
             return;
         }
-        if (target != mNestedScrollingChildRef.get() || !mNestedScrolled) {
+        // The content reached its edge: hand the rest of the scroll over to the sheet
+        boolean touch = type == ViewCompat.TYPE_TOUCH;
+        int currentTop = child.getTop();
+        int low = touch && mHideable ? -child.getHeight() : mMinOffset;
+        int newTop = constrain(currentTop - dyUnconsumed, low, mMaxOffset);
+        if (newTop == currentTop) {
             return;
         }
-        int top;
-        int targetState;
-        if (mLastNestedScrollDy < 0) {
-            top = mMaxOffset;
-            targetState = STATE_EXPANDED;
-        } else if (mHideable && shouldHide(child, getYVelocity())) {
-            top = -child.getHeight();
-            targetState = STATE_HIDDEN;
-        } else if (mLastNestedScrollDy == 0) {
-            int currentTop = child.getTop();
-            if (Math.abs(currentTop - mMinOffset) > Math.abs(currentTop - mMaxOffset)) {
-                top = mMaxOffset;
-                targetState = STATE_EXPANDED;
-            } else {
-                top = mMinOffset;
-                targetState = STATE_COLLAPSED;
+        consumed[1] += currentTop - newTop;
+        ViewCompat.offsetTopAndBottom(child, newTop - currentTop);
+        setStateInternal(touch ? STATE_DRAGGING : STATE_SETTLING);
+        dispatchOnSlide(child.getTop());
+        mLastNestedScrollDy = dyUnconsumed;
+        mNestedScrolled = true;
+    }
+
+    @Override
+    public void onStopNestedScroll(CoordinatorLayout coordinatorLayout, V child, View target,
+                                   int type) {
+        if (type == ViewCompat.TYPE_NON_TOUCH) {
+            if (!mNestedFlinging) {
+                return;
             }
-        } else {
-            top = mMinOffset;
-            targetState = STATE_COLLAPSED;
+            mNestedFlinging = false;
+        } else if (mNestedFlinging) {
+            // The content fling that follows the touch scroll carries on moving the sheet
+            return;
         }
-        if (mViewDragHelper.smoothSlideViewTo(child, child.getLeft(), top)) {
-            setStateInternal(STATE_SETTLING);
-            ViewCompat.postOnAnimation(child, new SettleRunnable(child, targetState));
-        } else {
-            setStateInternal(targetState);
+        if (child.getTop() == mMaxOffset) {
+            setStateInternal(STATE_EXPANDED);
+            return;
+        }
+        if (target != mNestedScrollingChildRef.get() || !mNestedScrolled) {
+            return;
         }
+        // Scrolling the content up (dy > 0) moves the sheet upward. A content fling only runs when
+        // the release did not hide the sheet, see onNestedPreFling, so it never hides it either,
+        // and the tracked velocity is the one of the touch that started it
+        boolean touch = type == ViewCompat.TYPE_TOUCH;
+        float yvel = touch ? getYVelocity() : 0;
+        @State int targetState = TopSheetSettle.resolveReleaseState(child.getTop(),
+                -Integer.signum(mLastNestedScrollDy), yvel, mMinOffset, mMaxOffset, mPeekHeight,
+                touch && mHideable, mSkipCollapsed);
+        int top = TopSheetSettle.topForState(targetState, mMinOffset, mMaxOffset,
+                child.getHeight());
+        mFlightRecorder.record(TopSheetFlightRecorder.EVENT_RELEASE, targetState, child.getTop(),
+                yvel);
+        startSettling(child, top, targetState, 0, false);
         mNestedScrolled = false;
     }
 
     @Override
     public boolean onNestedPreFling(CoordinatorLayout coordinatorLayout, V child, View target,
                                     float velocityX, float velocityY) {
-        return target == mNestedScrollingChildRef.get() &&
-                (mState != STATE_EXPANDED ||
-                        super.onNestedPreFling(coordinatorLayout, child, target,
-                                velocityX, velocityY));
+        if (target != mNestedScrollingChildRef.get()) {
+            return false;
+        }
+        if (target instanceof NestedScrollingChild2 && !shouldHideOnNestedRelease(child)) {
+            // Let the content fling, its momentum reaches the sheet through non-touch scrolls
+            return false;
+        }
+        return mState != STATE_EXPANDED ||
+                super.onNestedPreFling(coordinatorLayout, child, target, velocityX, velocityY);
+    }
+
+    /**
+     * @return Whether the touch scroll being released moved the sheet past its collapsed offset,
+     * or so fast that it hides. The fling is then consumed, and the sheet settles from the touch
+     * velocity when the touch scroll stops.
+     */
+    private boolean shouldHideOnNestedRelease(View child) {
+        if (!mHideable || !mNestedScrolled) {
+            return false;
+        }
+        return child.getTop() < mMinOffset || TopSheetSettle.resolveReleaseState(child.getTop(),
+                -Integer.signum(mLastNestedScrollDy), getYVelocity(), mMinOffset, mMaxOffset,
+                mPeekHeight, true, mSkipCollapsed) == STATE_HIDDEN;
     }
 
     /**
      * Sets the height of the bottom sheet when it is collapsed.
      *
      * @param peekHeight The height of the collapsed bottom sheet in pixels.
-     * @attr ref android.support.design.R.styleable#TopSheetBehavior_Params_behavior_peekHeight
+     * @attr ref R.styleable#TopSheetBehavior_Layout_behavior_peekHeight
      */
     public final void setPeekHeight(int peekHeight) {
         mPeekHeight = Math.max(0, peekHeight);
 //        mMaxOffset = mParentHeight - peekHeight;
         if (mViewRef != null && mViewRef.get() != null) {
-            mMinOffset = Math.max(-mViewRef.get().getHeight(), -(mViewRef.get().getHeight() - mPeekHeight));
+            mMinOffset = TopSheetSettle.minOffset(mViewRef.get().getHeight(), mPeekHeight);
         }
     }
 
@@ -416,7 +728,7 @@ public class TopSheetBehavior<V extends View> extends CoordinatorLayout.Behavior
      * Gets the height of the bottom sheet when it is collapsed.
      *
      * @return The height of the collapsed bottom sheet.
-     * @attr ref android.support.design.R.styleable#BottomSheetBehavior_Layout_behavior_peekHeight
+     * @attr ref R.styleable#TopSheetBehavior_Layout_behavior_peekHeight
      */
     public final int getPeekHeight() {
         return mPeekHeight;
@@ -426,7 +738,7 @@ public class TopSheetBehavior<V extends View> extends CoordinatorLayout.Behavior
      * Sets whether this bottom sheet can hide when it is swiped down.
      *
      * @param hideable {@code true} to make this bottom sheet hideable.
-     * @attr ref android.support.design.R.styleable#BottomSheetBehavior_Layout_behavior_hideable
+     * @attr ref R.styleable#TopSheetBehavior_Layout_behavior_hideable
      */
     public void setHideable(boolean hideable) {
         mHideable = hideable;
@@ -436,7 +748,7 @@ public class TopSheetBehavior<V extends View> extends CoordinatorLayout.Behavior
      * Gets whether this bottom sheet can hide when it is swiped down.
      *
      * @return {@code true} if this bottom sheet can hide.
-     * @attr ref android.support.design.R.styleable#BottomSheetBehavior_Layout_behavior_hideable
+     * @attr ref R.styleable#TopSheetBehavior_Layout_behavior_hideable
      */
     public boolean isHideable() {
         return mHideable;
@@ -447,7 +759,7 @@ public class TopSheetBehavior<V extends View> extends CoordinatorLayout.Behavior
      * after it is expanded once. Setting this to true has no effect unless the sheet is hideable.
      *
      * @param skipCollapsed True if the bottom sheet should skip the collapsed state.
-     * @attr ref android.support.design.R.styleable#BottomSheetBehavior_Layout_behavior_skipCollapsed
+     * @attr ref R.styleable#TopSheetBehavior_Layout_behavior_skipCollapsed
      */
     public void setSkipCollapsed(boolean skipCollapsed) {
         mSkipCollapsed = skipCollapsed;
@@ -458,12 +770,75 @@ public class TopSheetBehavior<V extends View> extends CoordinatorLayout.Behavior
      * after it is expanded once.
      *
      * @return Whether the bottom sheet should skip the collapsed state.
-     * @attr ref android.support.design.R.styleable#BottomSheetBehavior_Layout_behavior_skipCollapsed
+     * @attr ref R.styleable#TopSheetBehavior_Layout_behavior_skipCollapsed
      */
     public boolean getSkipCollapsed() {
         return mSkipCollapsed;
     }
 
+    /**
+     * Sets which properties of this top sheet are restored from its saved instance state, on top
+     * of its state. By default, the peek height set from code or XML is kept, as it may depend on
+     * the configuration.
+     *
+     * @param flags {@link #SAVE_NONE} or {@link #SAVE_PEEK_HEIGHT}.
+     */
+    public void setSaveFlags(@SaveFlags int flags) {
+        mSaveFlags = flags;
+    }
+
+    /**
+     * Gets which properties of this top sheet are restored from its saved instance state.
+     *
+     * @return {@link #SAVE_NONE} or {@link #SAVE_PEEK_HEIGHT}.
+     */
+    @SaveFlags
+    public int getSaveFlags() {
+        return mSaveFlags;
+    }
+
+    /**
+     * Sets whether changes of the height of this bottom sheet content are animated, keeping its
+     * visible edge stable, instead of snapping the sheet to its new offsets. When the sheet is a
+     * {@link TopSheetLayout} with a {@code wrap_content} height, content changes also re-measure
+     * only the sheet subtree rather than the whole {@link CoordinatorLayout}.
+     *
+     * @param animateContentResize {@code true} to animate content height changes.
+     */
+    public void setAnimateContentResize(boolean animateContentResize) {
+        mAnimateContentResize = animateContentResize;
+    }
+
+    /**
+     * Gets whether changes of the height of this bottom sheet content are animated.
+     *
+     * @return {@code true} if content height changes are animated.
+     */
+    public boolean isAnimatingContentResize() {
+        return mAnimateContentResize;
+    }
+
+    /**
+     * Sets whether this bottom sheet shares the drag and settle engine of its
+     * {@link CoordinatorLayout} with the other top sheets that opt into it, instead of using its
+     * own. This must be called before the sheet is laid out.
+     *
+     * @param useSharedEngine {@code true} to use the shared {@link TopSheetEngine}.
+     */
+    public void setUseSharedEngine(boolean useSharedEngine) {
+        mUseSharedEngine = useSharedEngine;
+    }
+
+    /**
+     * Gets whether this bottom sheet uses the drag and settle engine shared with the other top
+     * sheets of its {@link CoordinatorLayout}.
+     *
+     * @return {@code true} if this bottom sheet uses the shared {@link TopSheetEngine}.
+     */
+    public boolean isUsingSharedEngine() {
+        return mUseSharedEngine;
+    }
+
     /**
      * Sets a callback to be notified of bottom sheet events.
      *
@@ -506,10 +881,7 @@ public class TopSheetBehavior<V extends View> extends CoordinatorLayout.Behavior
         } else {
             throw new IllegalArgumentException("Illegal state argument: " + state);
         }
-        setStateInternal(STATE_SETTLING);
-        if (mViewDragHelper.smoothSlideViewTo(child, child.getLeft(), top)) {
-            ViewCompat.postOnAnimation(child, new SettleRunnable(child, state));
-        }
+        startSettling(child, top, state, 0, false);
     }
 
     /**
@@ -523,56 +895,149 @@ public class TopSheetBehavior<V extends View> extends CoordinatorLayout.Behavior
         return mState;
     }
 
+    /**
+     * Gets the recorder of the most recent state transitions, settles and release decisions of
+     * the bottom sheet. Its content can be dumped as text and attached to bug reports.
+     *
+     * @return The flight recorder of this behavior.
+     */
+    @NonNull
+    public TopSheetFlightRecorder getFlightRecorder() {
+        return mFlightRecorder;
+    }
+
     private void setStateInternal(@State int state) {
         if (mState == state) {
             return;
         }
         mState = state;
         View bottomSheet = mViewRef.get();
+        mFlightRecorder.record(TopSheetFlightRecorder.EVENT_STATE, state,
+                bottomSheet != null ? bottomSheet.getTop() : 0, 0);
         if (bottomSheet != null && mCallback != null) {
-            mCallback.onStateChanged(bottomSheet, state);
+            boolean traced = TopSheetTrace.begin(TopSheetTrace.DISPATCH_STATE);
+            try {
+                mCallback.onStateChanged(bottomSheet, state);
+            } finally {
+                TopSheetTrace.end(traced);
+            }
         }
     }
 
-    private void reset() {
-        mActivePointerId = ViewDragHelper.INVALID_POINTER;
-        if (mVelocityTracker != null) {
-            mVelocityTracker.recycle();
-            mVelocityTracker = null;
+    /**
+     * Moves the sheet to {@code top} with an animation, then sets its state to
+     * {@code targetState}.
+     *
+     * @param released Whether the sheet has just been released by the ViewDragHelper, so that
+     *                 the settle follows the velocity of the gesture.
+     */
+    private void startSettling(View child, int top, @State int targetState, float yvel,
+                               boolean released) {
+        boolean settling;
+        if (mEngine != null) {
+            int range = mHideable ? child.getHeight() : mMaxOffset - mMinOffset;
+            settling = mEngine.settle(this, child, top, targetState, yvel, range);
+        } else if (released) {
+            settling = mViewDragHelper.settleCapturedViewAt(child.getLeft(), top);
+        } else {
+            settling = mViewDragHelper.smoothSlideViewTo(child, child.getLeft(), top);
+        }
+        if (settling) {
+            mSettleTargetState = targetState;
+            setStateInternal(STATE_SETTLING);
+            mFlightRecorder.record(TopSheetFlightRecorder.EVENT_SETTLE_START, targetState,
+                    child.getTop(), yvel);
+            if (mEngine == null) {
+                cancelSettleRunnable();
+                mSettleRunnable = new SettleRunnable(child, targetState);
+                ViewCompat.postOnAnimation(child, mSettleRunnable);
+            }
+        } else {
+            setStateInternal(targetState);
         }
     }
 
-    private boolean shouldHide(View child, float yvel) {
-        if (child.getTop() > mMinOffset) {
-            // It should not hide, but collapse.
-            return false;
+    private void cancelSettleRunnable() {
+        if (mSettleRunnable != null) {
+            mSettleRunnable.mView.removeCallbacks(mSettleRunnable);
+            mSettleRunnable = null;
         }
-        final float newTop = child.getTop() + yvel * HIDE_FRICTION;
-        return Math.abs(newTop - mMinOffset) / (float) mPeekHeight > HIDE_THRESHOLD;
     }
 
-    private View findScrollingChild(View view) {
-        if (view instanceof NestedScrollingChild) {
-            return view;
-        }
-        if (view instanceof ViewGroup) {
-            ViewGroup group = (ViewGroup) view;
-            for (int i = 0, count = group.getChildCount(); i < count; i++) {
-                View scrollingChild = findScrollingChild(group.getChildAt(i));
-                if (scrollingChild != null) {
-                    return scrollingChild;
-                }
+    /**
+     * Cancels any pending settle or drag of the sheet and releases the resources held for the
+     * current gesture. The sheet is left in the state it was heading to, so that it is not stuck
+     * in an intermediate state when it is shown again.
+     */
+    void cancelPendingWork() {
+        cancelSettleRunnable();
+        V child = mViewRef != null ? mViewRef.get() : null;
+        if (mEngine != null) {
+            if (child != null) {
+                mEngine.release(child);
             }
+        } else if (mViewDragHelper != null) {
+            mViewDragHelper.abort();
+        }
+        if (child != null && (mState == STATE_SETTLING || mState == STATE_DRAGGING)) {
+            @State int targetState = mState == STATE_SETTLING ? mSettleTargetState
+                    : TopSheetSettle.nearestState(child.getTop(), mMinOffset, mMaxOffset);
+            mFlightRecorder.record(TopSheetFlightRecorder.EVENT_SETTLE_CANCEL, targetState,
+                    child.getTop(), 0);
+            ViewCompat.offsetTopAndBottom(child, TopSheetSettle.topForState(targetState,
+                    mMinOffset, mMaxOffset, child.getHeight()) - child.getTop());
+            setStateInternal(targetState);
+        }
+        reset();
+    }
+
+    void finishSettling(View child, @State int targetState) {
+        mFlightRecorder.record(TopSheetFlightRecorder.EVENT_SETTLE_END, targetState,
+                child.getTop(), 0);
+        setStateInternal(targetState);
+    }
+
+    private boolean shouldInterceptTouchEvent(MotionEvent event) {
+        if (mEngine != null) {
+            return mEngine.shouldInterceptTouchEvent(event);
+        }
+        return mViewDragHelper.shouldInterceptTouchEvent(event);
+    }
+
+    private int getTouchSlop() {
+        return mEngine != null ? mEngine.getTouchSlop() : mViewDragHelper.getTouchSlop();
+    }
+
+    TopSheetEngine getEngine() {
+        return mEngine;
+    }
+
+    private void reset() {
+        mActivePointerId = ViewDragHelper.INVALID_POINTER;
+        if (mVelocityTracker != null) {
+            mVelocityTracker.recycle();
+            mVelocityTracker = null;
         }
-        return null;
+    }
+
+    /**
+     * Hit-tests the sheet from its current frame, which is cheaper than
+     * {@link CoordinatorLayout#isPointInChildBounds} as no descendant rect has to be computed.
+     */
+    private static boolean isPointInSheet(View child, int x, int y) {
+        return x >= child.getLeft() && x < child.getRight() &&
+                y >= child.getTop() && y < child.getBottom();
     }
 
     private float getYVelocity() {
+        if (mVelocityTracker == null) {
+            return 0;
+        }
         mVelocityTracker.computeCurrentVelocity(1000, mMaximumVelocity);
         return VelocityTrackerCompat.getYVelocity(mVelocityTracker, mActivePointerId);
     }
 
-    private final ViewDragHelper.Callback mDragCallback = new ViewDragHelper.Callback() {
+    final ViewDragHelper.Callback mDragCallback = new ViewDragHelper.Callback() {
 
         @Override
         public boolean tryCaptureView(View child, int pointerId) {
@@ -606,34 +1071,14 @@ public class TopSheetBehavior<V extends View> extends CoordinatorLayout.Behavior
 
         @Override
         public void onViewReleased(View releasedChild, float xvel, float yvel) {
-            int top;
-            @State int targetState;
-            if (yvel > 0) { // Moving up
-                top = mMaxOffset;
-                targetState = STATE_EXPANDED;
-            } else if (mHideable && shouldHide(releasedChild, yvel)) {
-                top = -mViewRef.get().getHeight();
-                targetState = STATE_HIDDEN;
-            } else if (yvel == 0.f) {
-                int currentTop = releasedChild.getTop();
-                if (Math.abs(currentTop - mMinOffset) > Math.abs(currentTop - mMaxOffset)) {
-                    top = mMaxOffset;
-                    targetState = STATE_EXPANDED;
-                } else {
-                    top = mMinOffset;
-                    targetState = STATE_COLLAPSED;
-                }
-            } else {
-                top = mMinOffset;
-                targetState = STATE_COLLAPSED;
-            }
-            if (mViewDragHelper.settleCapturedViewAt(releasedChild.getLeft(), top)) {
-                setStateInternal(STATE_SETTLING);
-                ViewCompat.postOnAnimation(releasedChild,
-                        new SettleRunnable(releasedChild, targetState));
-            } else {
-                setStateInternal(targetState);
-            }
+            @State int targetState = TopSheetSettle.resolveReleaseState(releasedChild.getTop(),
+                    (int) Math.signum(yvel), yvel, mMinOffset, mMaxOffset, mPeekHeight,
+                    mHideable, mSkipCollapsed);
+            int top = TopSheetSettle.topForState(targetState, mMinOffset, mMaxOffset,
+                    releasedChild.getHeight());
+            mFlightRecorder.record(TopSheetFlightRecorder.EVENT_RELEASE, targetState,
+                    releasedChild.getTop(), yvel);
+            startSettling(releasedChild, top, targetState, yvel, true);
         }
 
         @Override
@@ -656,14 +1101,15 @@ public class TopSheetBehavior<V extends View> extends CoordinatorLayout.Behavior
         }
     };
 
-    private void dispatchOnSlide(int top) {
+    void dispatchOnSlide(int top) {
         View bottomSheet = mViewRef.get();
         if (bottomSheet != null && mCallback != null) {
-            if (top < mMinOffset) {
-                mCallback.onSlide(bottomSheet, (float) (top - mMinOffset) / mPeekHeight);
-            } else {
+            boolean traced = TopSheetTrace.begin(TopSheetTrace.DISPATCH_SLIDE);
+            try {
                 mCallback.onSlide(bottomSheet,
-                        (float) (top - mMinOffset) / ((mMaxOffset - mMinOffset)));
+                        TopSheetSettle.slideOffset(top, mMinOffset, mMaxOffset, mPeekHeight));
+            } finally {
+                TopSheetTrace.end(traced);
             }
         }
     }
@@ -682,10 +1128,18 @@ public class TopSheetBehavior<V extends View> extends CoordinatorLayout.Behavior
 
         @Override
         public void run() {
-            if (mViewDragHelper != null && mViewDragHelper.continueSettling(true)) {
-                ViewCompat.postOnAnimation(mView, this);
-            } else {
-                setStateInternal(mTargetState);
+            boolean traced = TopSheetTrace.begin(TopSheetTrace.SETTLE);
+            try {
+                if (mViewDragHelper != null && mViewDragHelper.continueSettling(true)) {
+                    ViewCompat.postOnAnimation(mView, this);
+                } else {
+                    if (mSettleRunnable == this) {
+                        mSettleRunnable = null;
+                    }
+                    finishSettling(mView, mTargetState);
+                }
+            } finally {
+                TopSheetTrace.end(traced);
             }
         }
     }
@@ -694,6 +1148,21 @@ public class TopSheetBehavior<V extends View> extends CoordinatorLayout.Behavior
         @State
         final int state;
 
+        /**
+         * The peek height, or -1 if it is not known.
+         */
+        final int peekHeight;
+
+        /**
+         * The top offset of the sheet, or {@link #NO_TOP} if it is not known.
+         */
+        final int top;
+
+        /**
+         * The last measured height of the sheet, or 0 if it is not known.
+         */
+        final int childHeight;
+
         public SavedState(Parcel source) {
             this(source, null);
         }
@@ -702,17 +1171,31 @@ public class TopSheetBehavior<V extends View> extends CoordinatorLayout.Behavior
             super(source, loader);
             //noinspection ResourceType
             state = source.readInt();
+            peekHeight = source.readInt();
+            top = source.readInt();
+            childHeight = source.readInt();
         }
 
         public SavedState(Parcelable superState, @State int state) {
+            this(superState, state, -1, NO_TOP, 0);
+        }
+
+        public SavedState(Parcelable superState, @State int state, int peekHeight, int top,
+                          int childHeight) {
             super(superState);
             this.state = state;
+            this.peekHeight = peekHeight;
+            this.top = top;
+            this.childHeight = childHeight;
         }
 
         @Override
         public void writeToParcel(Parcel out, int flags) {
             super.writeToParcel(out, flags);
             out.writeInt(state);
+            out.writeInt(peekHeight);
+            out.writeInt(top);
+            out.writeInt(childHeight);
         }
 
         public static final Creator<SavedState> CREATOR = ParcelableCompat.newCreator(
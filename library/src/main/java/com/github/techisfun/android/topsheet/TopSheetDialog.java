@@ -24,10 +24,9 @@ import android.view.ViewGroup;
 import android.view.Window;
 import android.widget.FrameLayout;
 
-import com.google.android.material.bottomsheet.BottomSheetBehavior;
-
 import androidx.annotation.LayoutRes;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.StyleRes;
 import androidx.appcompat.app.AppCompatDialog;
 import androidx.coordinatorlayout.widget.CoordinatorLayout;
@@ -39,6 +38,15 @@ public class TopSheetDialog extends AppCompatDialog {
 
     private TopSheetBehavior<FrameLayout> topSheetBehavior;
 
+    private TopSheetViewPool mViewPool;
+
+    private FrameLayout mTopSheet;
+
+    @LayoutRes
+    private int mPooledLayoutResId;
+
+    private View mPooledContent;
+
     public TopSheetDialog(@NonNull Context context) {
         super(context, getThemeResId(context, 0));
         supportRequestWindowFeature(Window.FEATURE_NO_TITLE);
@@ -69,6 +77,45 @@ public class TopSheetDialog extends AppCompatDialog {
                 ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT);
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        if (topSheetBehavior != null) {
+            topSheetBehavior.setTopSheetCallback(mTopSheetCallback);
+        }
+        if (mPooledLayoutResId != 0 && mPooledContent == null) {
+            // Shown again after its content went back to the pool
+            mPooledContent = obtainContent(mPooledLayoutResId, mTopSheet);
+            mTopSheet.addView(mPooledContent);
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        // Once dismissed, the behavior must not keep this dialog reachable nor run on its own
+        if (topSheetBehavior != null) {
+            topSheetBehavior.setTopSheetCallback(null);
+            topSheetBehavior.cancelPendingWork();
+        }
+        if (mViewPool != null && mPooledContent != null) {
+            mViewPool.release(mPooledLayoutResId, mPooledContent);
+            mPooledContent = null;
+        }
+    }
+
+    /**
+     * Sets the pool the content of this dialog is taken from when it is set with
+     * {@link #setContentView(int)}, and returned to when the dialog is dismissed. This must be
+     * called before the content is set.
+     *
+     * @param viewPool The pool shared with the other dialogs of the same scope, or null to always
+     *                 inflate the content.
+     */
+    public void setViewPool(@Nullable TopSheetViewPool viewPool) {
+        mViewPool = viewPool;
+    }
+
     @Override
     public void setContentView(View view) {
         super.setContentView(wrapInTopSheet(0, view, null));
@@ -80,12 +127,30 @@ public class TopSheetDialog extends AppCompatDialog {
     }
 
     private View wrapInTopSheet(int layoutResId, View view, ViewGroup.LayoutParams params) {
+        boolean traced = TopSheetTrace.begin(TopSheetTrace.DIALOG_WRAP);
+        try {
+            return wrapInTopSheetInternal(layoutResId, view, params);
+        } finally {
+            TopSheetTrace.end(traced);
+        }
+    }
+
+    private View wrapInTopSheetInternal(int layoutResId, View view,
+                                        ViewGroup.LayoutParams params) {
         final CoordinatorLayout coordinator = (CoordinatorLayout) View.inflate(getContext(),
                 R.layout.top_sheet_dialog, null);
         if (layoutResId != 0 && view == null) {
-            view = getLayoutInflater().inflate(layoutResId, coordinator, false);
+            view = obtainContent(layoutResId, coordinator);
+            if (mViewPool != null) {
+                mPooledLayoutResId = layoutResId;
+                mPooledContent = view;
+            }
+        } else {
+            mPooledLayoutResId = 0;
+            mPooledContent = null;
         }
         FrameLayout topSheet = (FrameLayout) coordinator.findViewById(R.id.design_top_sheet);
+        mTopSheet = topSheet;
         topSheetBehavior = TopSheetBehavior.from(topSheet);
         topSheetBehavior.setTopSheetCallback(mTopSheetCallback);
         if (params == null) {
@@ -108,6 +173,18 @@ public class TopSheetDialog extends AppCompatDialog {
         return coordinator;
     }
 
+    TopSheetBehavior<FrameLayout> getBehavior() {
+        return topSheetBehavior;
+    }
+
+    private View obtainContent(@LayoutRes int layoutResId, ViewGroup root) {
+        View view = mViewPool != null ? mViewPool.acquire(layoutResId) : null;
+        if (view == null) {
+            view = getLayoutInflater().inflate(layoutResId, root, false);
+        }
+        return view;
+    }
+
     private boolean shouldWindowCloseOnTouchOutside() {
         if (true) {
             return true;
@@ -127,7 +204,12 @@ public class TopSheetDialog extends AppCompatDialog {
 
     @Override
     public void show() {
-        super.show();
+        boolean traced = TopSheetTrace.begin(TopSheetTrace.DIALOG_SHOW);
+        try {
+            super.show();
+        } finally {
+            TopSheetTrace.end(traced);
+        }
         //topSheetBehavior.setState(TopSheetBehavior.STATE_EXPANDED);
     }
 
@@ -136,10 +218,10 @@ public class TopSheetDialog extends AppCompatDialog {
             // If the provided theme is 0, then retrieve the dialogTheme from our theme
             TypedValue outValue = new TypedValue();
             if (context.getTheme().resolveAttribute(
-                    R.attr.bottomSheetDialogTheme, outValue, true)) {
+                    R.attr.topSheetDialogTheme, outValue, true)) {
                 themeId = outValue.resourceId;
             } else {
-                // bottomSheetDialogTheme is not provided; we default to our light theme
+                // topSheetDialogTheme is not provided; we default to our light theme
                 themeId = R.style.Theme_Design_TopSheetDialog;
             }
         }
@@ -150,7 +232,7 @@ public class TopSheetDialog extends AppCompatDialog {
             = new TopSheetBehavior.TopSheetCallback() {
         @Override
         public void onStateChanged(@NonNull View topSheet,
-                                   @BottomSheetBehavior.State int newState) {
+                                   @TopSheetBehavior.State int newState) {
             if (newState == TopSheetBehavior.STATE_HIDDEN) {
                 dismiss();
             }
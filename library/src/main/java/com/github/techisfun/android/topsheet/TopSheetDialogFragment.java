@@ -1,17 +1,264 @@
 package com.github.techisfun.android.topsheet;
 
 import android.app.Dialog;
+import android.content.MutableContextWrapper;
+import android.content.pm.ActivityInfo;
+import android.content.res.Configuration;
 import android.os.Bundle;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewParent;
 
+import androidx.annotation.LayoutRes;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.fragment.app.DialogFragment;
+import androidx.fragment.app.FragmentActivity;
 
 /**
  * Created by andrea on 23/08/16.
  */
 public class TopSheetDialogFragment extends DialogFragment {
 
+    @LayoutRes
+    private final int mContentLayoutId;
+
+    private TopSheetViewPool mViewPool;
+
+    private View mPooledContent;
+
+    private boolean mRetainContent;
+
+    private int mReinflateConfigChanges = ActivityInfo.CONFIG_UI_MODE;
+
+    /**
+     * The context retained content is inflated with, pointed at the current activity.
+     */
+    private MutableContextWrapper mContentContext;
+
+    private View mRetainedContent;
+
+    private Configuration mRetainedConfiguration;
+
+    @TopSheetBehavior.State
+    private int mRetainedState;
+
+    @TopSheetBehavior.State
+    private int mRetainedTargetState;
+
+    private int mRetainedTop = TopSheetBehavior.NO_TOP;
+
+    public TopSheetDialogFragment() {
+        this(0);
+    }
+
+    /**
+     * Alternate constructor that can be called from a subclass default constructor, so that the
+     * content of the sheet is inflated from {@code contentLayoutId} by the default
+     * {@link #onCreateContentView(LayoutInflater, ViewGroup, Bundle)}.
+     *
+     * @param contentLayoutId The layout resource id of the content of the sheet.
+     */
+    public TopSheetDialogFragment(@LayoutRes int contentLayoutId) {
+        mContentLayoutId = contentLayoutId;
+    }
+
+    /**
+     * Sets the pool the content of the sheet is taken from when it is inflated from the layout
+     * passed to {@link #TopSheetDialogFragment(int)}, and returned to when the view of the
+     * fragment is destroyed. Content that is retained across a configuration change stays out of
+     * the pool.
+     * <p>
+     * The pool is emptied when the activity is recreated for a configuration change, as its views
+     * belong to the destroyed activity. A fragment retained with
+     * {@link #setRetainContent(boolean)} keeps using the same, emptied, pool: set the pool of the
+     * new activity again if it has its own.
+     *
+     * @param viewPool The pool shared with the other dialogs of the same scope, or null.
+     */
+    public void setViewPool(@Nullable TopSheetViewPool viewPool) {
+        mViewPool = viewPool;
+    }
+
+    /**
+     * Sets whether the content of the sheet and its state are kept across configuration
+     * changes, instead of being inflated again. The content must be created in
+     * {@link #onCreateContentView(LayoutInflater, ViewGroup, Bundle)}. This retains the fragment
+     * instance, see {@link #setRetainInstance(boolean)}.
+     * <p>
+     * The content is inflated with a {@link MutableContextWrapper}, which is pointed at the
+     * context of the new dialog when the content is attached to it, so that its views do not keep
+     * the destroyed activity. It is not taken from the view pool, see
+     * {@link #setViewPool(TopSheetViewPool)}.
+     * <p>
+     * <strong>Warning:</strong> resources that depend on the configuration are not picked up
+     * again, see {@link #setReinflateConfigChanges(int)}, and anything the views derived from
+     * their context when they were created (e.g. themed colors or system services) still comes
+     * from the destroyed activity. Only use this for content that is costly to inflate and does
+     * not depend on its activity.
+     *
+     * @param retainContent {@code true} to keep the content across configuration changes.
+     */
+    public void setRetainContent(boolean retainContent) {
+        mRetainContent = retainContent;
+        setRetainInstance(retainContent);
+        if (!retainContent) {
+            mRetainedContent = null;
+        }
+    }
+
+    /**
+     * Sets the configuration changes on which retained content is inflated again, so that it
+     * picks up the resources that depend on them. Defaults to
+     * {@link ActivityInfo#CONFIG_UI_MODE}, which covers dark mode switches.
+     *
+     * @param configChanges A mask of {@code ActivityInfo.CONFIG_*} values, or 0 to always reuse
+     *                      the retained content.
+     */
+    public void setReinflateConfigChanges(int configChanges) {
+        mReinflateConfigChanges = configChanges;
+    }
+
+    /**
+     * Creates the content of the sheet when it is not retained, see
+     * {@link #setRetainContent(boolean)}. Used instead of
+     * {@link #onCreateView(LayoutInflater, ViewGroup, Bundle)}. By default, takes the content
+     * from the view pool or inflates it from the layout passed to
+     * {@link #TopSheetDialogFragment(int)}.
+     *
+     * @return The content of the sheet, or null.
+     */
+    @Nullable
+    protected View onCreateContentView(@NonNull LayoutInflater inflater,
+                                       @Nullable ViewGroup container,
+                                       @Nullable Bundle savedInstanceState) {
+        if (mContentLayoutId == 0) {
+            return null;
+        }
+        // Pooled views were inflated without the context of retained content
+        View content = mViewPool != null && !mRetainContent
+                ? mViewPool.acquire(mContentLayoutId) : null;
+        if (content == null) {
+            content = inflater.inflate(mContentLayoutId, container, false);
+        }
+        if (mViewPool != null) {
+            mPooledContent = content;
+        }
+        return content;
+    }
+
     @Override
     public Dialog onCreateDialog(Bundle savedInstanceState) {
-        return new TopSheetDialog(getContext(), getTheme());
+        TopSheetDialog dialog = new TopSheetDialog(getContext(), getTheme());
+        dialog.setViewPool(mViewPool);
+        return dialog;
+    }
+
+    @Nullable
+    @Override
+    public View onCreateView(@NonNull LayoutInflater inflater, @Nullable ViewGroup container,
+                             @Nullable Bundle savedInstanceState) {
+        if (mRetainContent) {
+            if (mContentContext == null) {
+                mContentContext = new MutableContextWrapper(inflater.getContext());
+            } else {
+                mContentContext.setBaseContext(inflater.getContext());
+            }
+            inflater = inflater.cloneInContext(mContentContext);
+        }
+        View content = mRetainedContent;
+        mRetainedContent = null;
+        if (content != null && mRetainedConfiguration != null
+                && (getResources().getConfiguration().diff(mRetainedConfiguration)
+                & mReinflateConfigChanges) != 0) {
+            // Inflated for another configuration, so it does not go back to the pool either
+            content = null;
+            mPooledContent = null;
+            mRetainedTop = TopSheetBehavior.NO_TOP;
+        }
+        if (content == null) {
+            content = onCreateContentView(inflater, container, savedInstanceState);
+        }
+        if (content == null) {
+            content = super.onCreateView(inflater, container, savedInstanceState);
+        }
+        return content;
+    }
+
+    @Override
+    public void onActivityCreated(Bundle savedInstanceState) {
+        super.onActivityCreated(savedInstanceState);
+        // The content is in the new dialog now, put the sheet back where it was
+        if (mRetainedTop != TopSheetBehavior.NO_TOP && getDialog() instanceof TopSheetDialog) {
+            TopSheetBehavior<?> behavior = ((TopSheetDialog) getDialog()).getBehavior();
+            if (behavior != null) {
+                behavior.restoreGeometry(mRetainedState, mRetainedTop, mRetainedTargetState);
+            }
+        }
+        mRetainedTop = TopSheetBehavior.NO_TOP;
+    }
+
+    @Override
+    public void onDestroyView() {
+        FragmentActivity activity = getActivity();
+        View content = getView();
+        View pooledContent = null;
+        if (mRetainContent && content != null && activity != null
+                && activity.isChangingConfigurations()) {
+            if (getDialog() instanceof TopSheetDialog) {
+                TopSheetBehavior<?> behavior = ((TopSheetDialog) getDialog()).getBehavior();
+                if (behavior != null) {
+                    // Captured before the dialog is dismissed, which would end a settle early
+                    mRetainedState = behavior.getState();
+                    mRetainedTargetState = behavior.getSettleTargetState();
+                    mRetainedTop = behavior.getCurrentTop();
+                }
+            }
+            ViewParent parent = content.getParent();
+            if (parent instanceof ViewGroup) {
+                ((ViewGroup) parent).removeView(content);
+            }
+            mRetainedContent = content;
+            mRetainedConfiguration = new Configuration(getResources().getConfiguration());
+        } else {
+            // Content inflated by an activity being recreated is not worth reusing
+            if (activity == null || !activity.isChangingConfigurations()) {
+                pooledContent = mPooledContent;
+            }
+            mPooledContent = null;
+        }
+        super.onDestroyView();
+        // The dialog is dismissed by now, so the content can leave it
+        if (pooledContent != null && mViewPool != null) {
+            mViewPool.release(mContentLayoutId, pooledContent);
+        }
+    }
+
+    @Override
+    public void onDetach() {
+        FragmentActivity activity = getActivity();
+        if (mViewPool != null && activity != null && activity.isChangingConfigurations()) {
+            // Also called for retained fragments, unlike onDestroy
+            mViewPool.clear();
+        }
+        if (mContentContext != null && activity != null && activity.isChangingConfigurations()) {
+            // Until the content is attached to the new activity
+            mContentContext.setBaseContext(activity.getApplicationContext());
+        }
+        super.onDetach();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        FragmentActivity activity = getActivity();
+        if (activity == null || !activity.isChangingConfigurations()) {
+            // The fragment is gone for good, do not keep the old activity reachable
+            mRetainedContent = null;
+            mContentContext = null;
+            mRetainedConfiguration = null;
+            mRetainedTop = TopSheetBehavior.NO_TOP;
+        }
     }
 }
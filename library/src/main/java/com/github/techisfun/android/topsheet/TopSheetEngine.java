@@ -0,0 +1,365 @@
+package com.github.techisfun.android.topsheet;
+
+import android.view.MotionEvent;
+import android.view.View;
+import android.view.ViewConfiguration;
+import android.view.ViewGroup;
+import android.view.animation.Interpolator;
+import android.widget.OverScroller;
+
+import java.util.ArrayList;
+
+import androidx.annotation.NonNull;
+import androidx.coordinatorlayout.widget.CoordinatorLayout;
+import androidx.core.view.ViewCompat;
+import androidx.customview.widget.ViewDragHelper;
+
+/**
+ * A drag and settle engine shared by the top sheets of a {@link CoordinatorLayout} that opt into
+ * it with {@link TopSheetBehavior#setUseSharedEngine(boolean)}.
+ * <p>
+ * The engine owns a single {@link ViewDragHelper}, so that only one sheet at a time captures a
+ * gesture: the top-most sheet under the pointer. It also advances all the settling sheets from a
+ * single animation callback per frame, however many sheets live in the layout.
+ */
+public final class TopSheetEngine {
+
+    private static final Interpolator sInterpolator = new Interpolator() {
+        @Override
+        public float getInterpolation(float t) {
+            return TopSheetSettle.interpolate(t);
+        }
+    };
+
+    private final CoordinatorLayout mParent;
+
+    private final ViewDragHelper mViewDragHelper;
+
+    private final float mMinVelocity;
+
+    private final ArrayList<Settle> mSettles = new ArrayList<>();
+
+    private final ArrayList<Settle> mFinishedSettles = new ArrayList<>();
+
+    private final ArrayList<Settle> mSettlePool = new ArrayList<>();
+
+    private boolean mFrameScheduled;
+
+    private boolean mDispatchingFrame;
+
+    // Every top sheet behavior of the parent forwards the same event, it is handled only once
+    private MotionEvent mLastInterceptEvent;
+
+    private long mLastInterceptTime;
+
+    private int mLastInterceptAction;
+
+    private boolean mLastInterceptResult;
+
+    private MotionEvent mLastTouchEvent;
+
+    private long mLastTouchTime;
+
+    private int mLastTouchAction;
+
+    private TopSheetEngine(CoordinatorLayout parent) {
+        mParent = parent;
+        mViewDragHelper = ViewDragHelper.create(parent, mDragCallback);
+        mMinVelocity = ViewConfiguration.get(parent.getContext()).getScaledMinimumFlingVelocity();
+    }
+
+    /**
+     * Gets the engine shared by the top sheets of {@code parent}, creating it if needed.
+     *
+     * @param parent The {@link CoordinatorLayout} the top sheets belong to.
+     * @return The engine of {@code parent}.
+     */
+    @NonNull
+    public static TopSheetEngine from(@NonNull CoordinatorLayout parent) {
+        TopSheetEngine engine = (TopSheetEngine) parent.getTag(R.id.top_sheet_engine);
+        if (engine == null) {
+            engine = new TopSheetEngine(parent);
+            parent.setTag(R.id.top_sheet_engine, engine);
+        }
+        return engine;
+    }
+
+    int getTouchSlop() {
+        return mViewDragHelper.getTouchSlop();
+    }
+
+    boolean shouldInterceptTouchEvent(MotionEvent event) {
+        int action = event.getActionMasked();
+        if (event == mLastInterceptEvent && event.getEventTime() == mLastInterceptTime &&
+                action == mLastInterceptAction) {
+            return mLastInterceptResult;
+        }
+        mLastInterceptEvent = event;
+        mLastInterceptTime = event.getEventTime();
+        mLastInterceptAction = action;
+        mLastInterceptResult = mViewDragHelper.shouldInterceptTouchEvent(event);
+        return mLastInterceptResult;
+    }
+
+    void processTouchEvent(MotionEvent event) {
+        int action = event.getActionMasked();
+        if (event == mLastTouchEvent && event.getEventTime() == mLastTouchTime &&
+                action == mLastTouchAction) {
+            return;
+        }
+        mLastTouchEvent = event;
+        mLastTouchTime = event.getEventTime();
+        mLastTouchAction = action;
+        mViewDragHelper.processTouchEvent(event);
+    }
+
+    /**
+     * Captures {@code child} for dragging, unless another sheet already captured the gesture.
+     */
+    void captureChildView(View child, int pointerId) {
+        View captured = mViewDragHelper.getCapturedView();
+        if (captured == null || captured == child) {
+            mViewDragHelper.captureChildView(child, pointerId);
+        }
+    }
+
+    /**
+     * Starts moving {@code child} to {@code top}. The owning behavior is notified of every frame
+     * with {@code dispatchOnSlide} and of the end of the settle with
+     * {@code finishSettling}.
+     *
+     * @return Whether the sheet is settling, false if it already is at {@code top}.
+     */
+    boolean settle(TopSheetBehavior<?> behavior, View child, int top,
+                   @TopSheetBehavior.State int targetState, float yvel, int range) {
+        Settle settle = findSettle(child);
+        int startTop = child.getTop();
+        int dy = top - startTop;
+        if (dy == 0) {
+            if (settle != null) {
+                cancel(settle);
+            }
+            return false;
+        }
+        if (settle == null) {
+            settle = obtainSettle();
+            mSettles.add(settle);
+        } else if (mDispatchingFrame) {
+            // An onSlide callback restarted a settle that finished earlier in this frame
+            mFinishedSettles.remove(settle);
+        }
+        settle.mBehavior = behavior;
+        settle.mView = child;
+        settle.mTargetState = targetState;
+        settle.mScroller.startScroll(0, startTop, 0, dy,
+                TopSheetSettle.settleDuration(dy, yvel, range, mMinVelocity));
+        if (!mFrameScheduled) {
+            mFrameScheduled = true;
+            ViewCompat.postOnAnimation(mParent, mFrameRunnable);
+        }
+        return true;
+    }
+
+    /**
+     * Stops any settle of {@code child} and forgets about its behavior.
+     */
+    void release(View child) {
+        Settle settle = findSettle(child);
+        if (settle != null) {
+            cancel(settle);
+        }
+        if (mViewDragHelper.getCapturedView() == child) {
+            mViewDragHelper.abort();
+        }
+    }
+
+    private Settle findSettle(View child) {
+        for (int i = 0, count = mSettles.size(); i < count; i++) {
+            Settle settle = mSettles.get(i);
+            if (settle.mView == child && !settle.mCancelled) {
+                return settle;
+            }
+        }
+        return null;
+    }
+
+    private Settle obtainSettle() {
+        int size = mSettlePool.size();
+        if (size > 0) {
+            return mSettlePool.remove(size - 1);
+        }
+        return new Settle(new OverScroller(mParent.getContext(), sInterpolator));
+    }
+
+    /**
+     * Stops {@code settle}. While a frame is dispatched, it is only marked as cancelled and is
+     * removed once the frame is done, so that the frame loop keeps iterating over a stable list.
+     */
+    private void cancel(Settle settle) {
+        if (mDispatchingFrame) {
+            settle.mCancelled = true;
+        } else {
+            mSettles.remove(settle);
+            recycle(settle);
+        }
+    }
+
+    private void recycle(Settle settle) {
+        settle.mScroller.abortAnimation();
+        settle.mBehavior = null;
+        settle.mView = null;
+        settle.mCancelled = false;
+        mSettlePool.add(settle);
+    }
+
+    private final Runnable mFrameRunnable = new Runnable() {
+        @Override
+        public void run() {
+            boolean traced = TopSheetTrace.begin(TopSheetTrace.SETTLE);
+            try {
+                // onSlide callbacks may release or dismiss any of the sheets
+                mDispatchingFrame = true;
+                for (int i = 0, count = mSettles.size(); i < count; i++) {
+                    Settle settle = mSettles.get(i);
+                    if (settle.mCancelled) {
+                        continue;
+                    }
+                    boolean running = settle.mScroller.computeScrollOffset();
+                    View view = settle.mView;
+                    int dy = settle.mScroller.getCurrY() - view.getTop();
+                    if (dy != 0) {
+                        ViewCompat.offsetTopAndBottom(view, dy);
+                        settle.mBehavior.dispatchOnSlide(view.getTop());
+                    }
+                    if (!running) {
+                        mFinishedSettles.add(settle);
+                    }
+                }
+                mDispatchingFrame = false;
+                for (int i = mSettles.size() - 1; i >= 0; i--) {
+                    Settle settle = mSettles.get(i);
+                    if (settle.mCancelled) {
+                        mSettles.remove(i);
+                        mFinishedSettles.remove(settle);
+                        recycle(settle);
+                    }
+                }
+                mSettles.removeAll(mFinishedSettles);
+                // Behaviors may start a new settle when notified, so do it once the frame is done
+                for (int i = 0, count = mFinishedSettles.size(); i < count; i++) {
+                    Settle settle = mFinishedSettles.get(i);
+                    TopSheetBehavior<?> behavior = settle.mBehavior;
+                    View view = settle.mView;
+                    int targetState = settle.mTargetState;
+                    recycle(settle);
+                    behavior.finishSettling(view, targetState);
+                }
+                mFinishedSettles.clear();
+                if (mSettles.isEmpty()) {
+                    mFrameScheduled = false;
+                } else {
+                    ViewCompat.postOnAnimation(mParent, this);
+                }
+            } finally {
+                mDispatchingFrame = false;
+                TopSheetTrace.end(traced);
+            }
+        }
+    };
+
+    private TopSheetBehavior<?> behaviorOf(View child) {
+        ViewGroup.LayoutParams params = child.getLayoutParams();
+        if (params instanceof CoordinatorLayout.LayoutParams) {
+            CoordinatorLayout.Behavior behavior =
+                    ((CoordinatorLayout.LayoutParams) params).getBehavior();
+            if (behavior instanceof TopSheetBehavior
+                    && ((TopSheetBehavior) behavior).getEngine() == this) {
+                return (TopSheetBehavior<?>) behavior;
+            }
+        }
+        return null;
+    }
+
+    private final ViewDragHelper.Callback mDragCallback = new ViewDragHelper.Callback() {
+
+        @Override
+        public boolean tryCaptureView(@NonNull View child, int pointerId) {
+            TopSheetBehavior<?> behavior = behaviorOf(child);
+            return behavior != null && behavior.mDragCallback.tryCaptureView(child, pointerId);
+        }
+
+        @Override
+        public void onViewCaptured(@NonNull View capturedChild, int activePointerId) {
+            // The gesture takes over any settle of the sheet
+            Settle settle = findSettle(capturedChild);
+            if (settle != null) {
+                cancel(settle);
+            }
+        }
+
+        @Override
+        public void onViewPositionChanged(@NonNull View changedView, int left, int top, int dx,
+                                          int dy) {
+            TopSheetBehavior<?> behavior = behaviorOf(changedView);
+            if (behavior != null) {
+                behavior.mDragCallback.onViewPositionChanged(changedView, left, top, dx, dy);
+            }
+        }
+
+        @Override
+        public void onViewDragStateChanged(int state) {
+            View captured = mViewDragHelper.getCapturedView();
+            TopSheetBehavior<?> behavior = captured != null ? behaviorOf(captured) : null;
+            if (behavior != null) {
+                behavior.mDragCallback.onViewDragStateChanged(state);
+            }
+        }
+
+        @Override
+        public void onViewReleased(@NonNull View releasedChild, float xvel, float yvel) {
+            TopSheetBehavior<?> behavior = behaviorOf(releasedChild);
+            if (behavior != null) {
+                behavior.mDragCallback.onViewReleased(releasedChild, xvel, yvel);
+            }
+        }
+
+        @Override
+        public int clampViewPositionVertical(@NonNull View child, int top, int dy) {
+            TopSheetBehavior<?> behavior = behaviorOf(child);
+            return behavior != null
+                    ? behavior.mDragCallback.clampViewPositionVertical(child, top, dy)
+                    : child.getTop();
+        }
+
+        @Override
+        public int clampViewPositionHorizontal(@NonNull View child, int left, int dx) {
+            return child.getLeft();
+        }
+
+        @Override
+        public int getViewVerticalDragRange(@NonNull View child) {
+            TopSheetBehavior<?> behavior = behaviorOf(child);
+            return behavior != null
+                    ? behavior.mDragCallback.getViewVerticalDragRange(child)
+                    : 0;
+        }
+    };
+
+    private static class Settle {
+
+        final OverScroller mScroller;
+
+        TopSheetBehavior<?> mBehavior;
+
+        View mView;
+
+        @TopSheetBehavior.State
+        int mTargetState;
+
+        boolean mCancelled;
+
+        Settle(OverScroller scroller) {
+            mScroller = scroller;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.github.techisfun.android.topsheet;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A fixed-size ring buffer of the most recent events of a {@link TopSheetBehavior}: state
+ * transitions, settle start and end, and release decisions. Recording does not allocate, so it is
+ * always on; the buffer can be dumped as text to be attached to bug reports.
+ *
+ * @see TopSheetBehavior#getFlightRecorder()
+ */
+public final class TopSheetFlightRecorder {
+
+    /**
+     * The number of events kept by the recorder.
+     */
+    public static final int CAPACITY = 64;
+
+    static final int EVENT_STATE = 0;
+
+    static final int EVENT_SETTLE_START = 1;
+
+    static final int EVENT_SETTLE_END = 2;
+
+    static final int EVENT_RELEASE = 3;
+
+    static final int EVENT_SETTLE_CANCEL = 4;
+
+    private final long[] mTimes = new long[CAPACITY];
+
+    private final int[] mEvents = new int[CAPACITY];
+
+    private final int[] mStates = new int[CAPACITY];
+
+    private final int[] mTops = new int[CAPACITY];
+
+    private final float[] mVelocities = new float[CAPACITY];
+
+    private int mNext;
+
+    private int mCount;
+
+    TopSheetFlightRecorder() {
+    }
+
+    /**
+     * Records an event.
+     *
+     * @param event    One of the {@code EVENT_*} constants.
+     * @param state    The state the event refers to: the new state or the settle target.
+     * @param top      The top offset of the sheet when the event happened.
+     * @param velocity The vertical velocity involved in the event, 0 if none.
+     */
+    void record(int event, int state, int top, float velocity) {
+        int i = mNext;
+        mTimes[i] = SystemClock.uptimeMillis();
+        mEvents[i] = event;
+        mStates[i] = state;
+        mTops[i] = top;
+        mVelocities[i] = velocity;
+        mNext = (i + 1) % CAPACITY;
+        if (mCount < CAPACITY) {
+            mCount++;
+        }
+    }
+
+    /**
+     * Removes all the recorded events.
+     */
+    public void clear() {
+        mNext = 0;
+        mCount = 0;
+    }
+
+    /**
+     * Writes the recorded events, oldest first, one per line.
+     *
+     * @param writer The writer to dump the events to.
+     */
+    public void dump(@NonNull PrintWriter writer) {
+        writer.print("TopSheetFlightRecorder: ");
+        writer.print(mCount);
+        writer.println(" events");
+        int first = (mNext - mCount + CAPACITY) % CAPACITY;
+        for (int n = 0; n < mCount; n++) {
+            int i = (first + n) % CAPACITY;
+            writer.print("  ");
+            writer.print(mTimes[i]);
+            writer.print(' ');
+            writer.print(eventToString(mEvents[i]));
+            writer.print(" state=");
+            writer.print(stateToString(mStates[i]));
+            writer.print(" top=");
+            writer.print(mTops[i]);
+            writer.print(" velocity=");
+            writer.println(mVelocities[i]);
+        }
+        writer.flush();
+    }
+
+    @Override
+    public String toString() {
+        StringWriter out = new StringWriter();
+        dump(new PrintWriter(out));
+        return out.toString();
+    }
+
+    private static String eventToString(int event) {
+        switch (event) {
+            case EVENT_STATE:
+                return "STATE";
+            case EVENT_SETTLE_START:
+                return "SETTLE_START";
+            case EVENT_SETTLE_END:
+                return "SETTLE_END";
+            case EVENT_RELEASE:
+                return "RELEASE";
+            case EVENT_SETTLE_CANCEL:
+                return "SETTLE_CANCEL";
+            default:
+                return Integer.toString(event);
+        }
+    }
+
+    private static String stateToString(int state) {
+        switch (state) {
+            case TopSheetBehavior.STATE_DRAGGING:
+                return "DRAGGING";
+            case TopSheetBehavior.STATE_SETTLING:
+                return "SETTLING";
+            case TopSheetBehavior.STATE_EXPANDED:
+                return "EXPANDED";
+            case TopSheetBehavior.STATE_COLLAPSED:
+                return "COLLAPSED";
+            case TopSheetBehavior.STATE_HIDDEN:
+                return "HIDDEN";
+            default:
+                return Integer.toString(state);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.github.techisfun.android.topsheet;
+
+import android.content.Context;
+import android.util.AttributeSet;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
+
+import androidx.coordinatorlayout.widget.CoordinatorLayout;
+import androidx.core.view.ViewCompat;
+
+/**
+ * A {@link FrameLayout} to be used as a top sheet. When its {@link TopSheetBehavior} animates
+ * content resizes (see {@link TopSheetBehavior#setAnimateContentResize(boolean)}) and its height
+ * is {@code wrap_content}, layout requests coming from its content re-measure and lay out only
+ * this view and its children, on the next frame, instead of the whole {@link CoordinatorLayout}.
+ * The behavior then animates the sheet to its new offsets.
+ */
+public class TopSheetLayout extends FrameLayout {
+
+    private boolean mLocalLayoutPending;
+
+    public TopSheetLayout(Context context) {
+        super(context);
+    }
+
+    public TopSheetLayout(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    public TopSheetLayout(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+    }
+
+    @Override
+    public void requestLayout() {
+        if (!canLayoutLocally()) {
+            super.requestLayout();
+            return;
+        }
+        // Flag this subtree for layout without propagating the request to the parent
+        forceLayout();
+        if (!mLocalLayoutPending) {
+            mLocalLayoutPending = true;
+            ViewCompat.postOnAnimation(this, mLocalLayout);
+        }
+    }
+
+    private boolean canLayoutLocally() {
+        ViewGroup.LayoutParams params = getLayoutParams();
+        if (!(params instanceof CoordinatorLayout.LayoutParams)
+                || params.height != ViewGroup.LayoutParams.WRAP_CONTENT
+                || !ViewCompat.isAttachedToWindow(this) || !ViewCompat.isLaidOut(this)) {
+            return false;
+        }
+        View parent = (View) getParent();
+        if (parent == null || parent.isInLayout() || parent.isLayoutRequested()) {
+            return false;
+        }
+        CoordinatorLayout.Behavior behavior =
+                ((CoordinatorLayout.LayoutParams) params).getBehavior();
+        return behavior instanceof TopSheetBehavior
+                && ((TopSheetBehavior) behavior).isAnimatingContentResize();
+    }
+
+    private final Runnable mLocalLayout = new Runnable() {
+        @Override
+        public void run() {
+            mLocalLayoutPending = false;
+            if (!isLayoutRequested()) {
+                // A full layout pass took care of it in the meantime
+                return;
+            }
+            if (!canLayoutLocally()) {
+                TopSheetLayout.super.requestLayout();
+                return;
+            }
+            View parent = (View) getParent();
+            CoordinatorLayout.LayoutParams params =
+                    (CoordinatorLayout.LayoutParams) getLayoutParams();
+            int availableHeight = parent.getHeight() - parent.getPaddingTop()
+                    - parent.getPaddingBottom() - params.topMargin - params.bottomMargin;
+            int oldHeight = getHeight();
+            int bottom = getBottom();
+            measure(MeasureSpec.makeMeasureSpec(getWidth(), MeasureSpec.EXACTLY),
+                    MeasureSpec.makeMeasureSpec(Math.max(0, availableHeight),
+                            MeasureSpec.AT_MOST));
+            int height = getMeasuredHeight();
+            layout(getLeft(), bottom - height, getRight(), bottom);
+            invalidate();
+            if (height != oldHeight) {
+                ((TopSheetBehavior) params.getBehavior()).onContentResized(TopSheetLayout.this);
+            }
+        }
+    };
+}
@@ -0,0 +1,134 @@
+package com.github.techisfun.android.topsheet;
+
+import static com.github.techisfun.android.topsheet.TopSheetBehavior.STATE_COLLAPSED;
+import static com.github.techisfun.android.topsheet.TopSheetBehavior.STATE_EXPANDED;
+import static com.github.techisfun.android.topsheet.TopSheetBehavior.STATE_HIDDEN;
+
+/**
+ * The geometry and settle decisions of {@link TopSheetBehavior}. They only depend on offsets and
+ * velocities, so they can be exercised on a plain JVM, e.g. by a gesture simulator.
+ */
+final class TopSheetSettle {
+
+    static final float HIDE_THRESHOLD = 0.5f;
+
+    static final float HIDE_FRICTION = 0.1f;
+
+    static final int BASE_SETTLE_DURATION = 256; // ms
+
+    static final int MAX_SETTLE_DURATION = 600; // ms
+
+    private TopSheetSettle() {
+    }
+
+    /**
+     * @return The top offset of a collapsed sheet, never below the one of an expanded sheet,
+     * which is 0.
+     */
+    static int minOffset(int height, int peekHeight) {
+        return Math.min(Math.max(-height, peekHeight - height), 0);
+    }
+
+    /**
+     * @return The top offset of a sheet in {@code state}, which must not be an intermediate one.
+     */
+    static int topForState(@TopSheetBehavior.State int state, int minOffset, int maxOffset,
+                           int height) {
+        switch (state) {
+            case STATE_EXPANDED:
+                return maxOffset;
+            case STATE_COLLAPSED:
+                return minOffset;
+            case STATE_HIDDEN:
+                return -height;
+            default:
+                throw new IllegalArgumentException("Illegal state argument: " + state);
+        }
+    }
+
+    /**
+     * @return The one of {@link TopSheetBehavior#STATE_EXPANDED} and
+     * {@link TopSheetBehavior#STATE_COLLAPSED} whose offset is the nearest to {@code top}.
+     */
+    @TopSheetBehavior.State
+    static int nearestState(int top, int minOffset, int maxOffset) {
+        return Math.abs(top - minOffset) > Math.abs(top - maxOffset)
+                ? STATE_EXPANDED : STATE_COLLAPSED;
+    }
+
+    /**
+     * Resolves the state a sheet settles to once it is released.
+     *
+     * @param top       The top offset of the sheet.
+     * @param direction Positive if the sheet was moving downward, negative if it was moving
+     *                  upward, 0 if it was not moving.
+     * @param yvel      The vertical velocity of the release, positive downward.
+     * @return {@link TopSheetBehavior#STATE_EXPANDED}, {@link TopSheetBehavior#STATE_COLLAPSED}
+     * or {@link TopSheetBehavior#STATE_HIDDEN}.
+     */
+    @TopSheetBehavior.State
+    static int resolveReleaseState(int top, int direction, float yvel, int minOffset,
+                                   int maxOffset, int peekHeight, boolean hideable,
+                                   boolean skipCollapsed) {
+        if (direction > 0) {
+            return STATE_EXPANDED;
+        }
+        if (hideable && shouldHide(top, yvel, minOffset, peekHeight)) {
+            return STATE_HIDDEN;
+        }
+        int state = direction == 0 ? nearestState(top, minOffset, maxOffset) : STATE_COLLAPSED;
+        if (state == STATE_COLLAPSED && hideable && skipCollapsed) {
+            return STATE_HIDDEN;
+        }
+        return state;
+    }
+
+    static boolean shouldHide(int top, float yvel, int minOffset, int peekHeight) {
+        if (top > minOffset) {
+            // It should not hide, but collapse.
+            return false;
+        }
+        final float newTop = top + yvel * HIDE_FRICTION;
+        // With no peek height, the collapsed sheet is already out of sight
+        return Math.abs(newTop - minOffset) / (float) Math.max(peekHeight, 1) > HIDE_THRESHOLD;
+    }
+
+    /**
+     * @return The offset reported to {@link TopSheetBehavior.TopSheetCallback#onSlide}: from 0
+     * (collapsed) to 1 (expanded), and from 0 to -1 between collapsed and hidden.
+     */
+    static float slideOffset(int top, int minOffset, int maxOffset, int peekHeight) {
+        if (top < minOffset) {
+            return (float) (top - minOffset) / Math.max(peekHeight, 1);
+        }
+        int range = maxOffset - minOffset;
+        return range > 0 ? (float) (top - minOffset) / range : 1f;
+    }
+
+    /**
+     * @param dy          The distance to settle over.
+     * @param yvel        The vertical velocity of the release.
+     * @param range       The distance the sheet can travel.
+     * @param minVelocity The velocity under which a release is not considered a fling.
+     * @return The duration of a settle of the shared engine, in milliseconds.
+     */
+    static int settleDuration(int dy, float yvel, int range, float minVelocity) {
+        int absDy = Math.abs(dy);
+        float absVelocity = Math.abs(yvel);
+        int duration;
+        if (absVelocity > minVelocity) {
+            duration = 4 * Math.round(1000 * absDy / absVelocity);
+        } else {
+            duration = (int) (((float) absDy / Math.max(range, 1) + 1) * BASE_SETTLE_DURATION);
+        }
+        return Math.min(duration, MAX_SETTLE_DURATION);
+    }
+
+    /**
+     * The quintic ease-out of the settles, as used by {@code ViewDragHelper}.
+     */
+    static float interpolate(float t) {
+        t -= 1.0f;
+        return t * t * t * t * t + 1.0f;
+    }
+}
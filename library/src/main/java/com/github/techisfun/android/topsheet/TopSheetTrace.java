@@ -0,0 +1,87 @@
+package com.github.techisfun.android.topsheet;
+
+import androidx.tracing.Trace;
+
+/**
+ * Trace sections emitted around the top sheet hot paths, so that system traces show how much of
+ * a frame the sheet and its listeners take.
+ * <p>
+ * Section names are stable and can be used in trace queries:
+ * <ul>
+ * <li>{@link #LAYOUT_CHILD} - {@code TopSheetBehavior.onLayoutChild}</li>
+ * <li>{@link #INTERCEPT_TOUCH} - {@code TopSheetBehavior.onInterceptTouchEvent}</li>
+ * <li>{@link #TOUCH} - {@code TopSheetBehavior.onTouchEvent}</li>
+ * <li>{@link #NESTED_PRE_SCROLL} - {@code TopSheetBehavior.onNestedPreScroll}</li>
+ * <li>{@link #SETTLE} - one frame of a settle animation</li>
+ * <li>{@link #DISPATCH_SLIDE} - {@link TopSheetBehavior.TopSheetCallback#onSlide}</li>
+ * <li>{@link #DISPATCH_STATE} - {@link TopSheetBehavior.TopSheetCallback#onStateChanged}</li>
+ * <li>{@link #DIALOG_WRAP} - {@code TopSheetDialog.wrapInTopSheet}</li>
+ * <li>{@link #DIALOG_SHOW} - {@link TopSheetDialog#show()}</li>
+ * </ul>
+ * Sections are off by default, so that the hot paths pay no tracing cost. Turn them on with
+ * {@link #setEnabled(boolean)}, e.g. in {@code Application.onCreate()} of a debug or profileable
+ * build.
+ */
+public final class TopSheetTrace {
+
+    private static volatile boolean sEnabled;
+
+    public static final String LAYOUT_CHILD = "TopSheet:layoutChild";
+
+    public static final String INTERCEPT_TOUCH = "TopSheet:interceptTouch";
+
+    public static final String TOUCH = "TopSheet:touch";
+
+    public static final String NESTED_PRE_SCROLL = "TopSheet:nestedPreScroll";
+
+    public static final String SETTLE = "TopSheet:settle";
+
+    public static final String DISPATCH_SLIDE = "TopSheet:dispatchSlide";
+
+    public static final String DISPATCH_STATE = "TopSheet:dispatchState";
+
+    public static final String DIALOG_WRAP = "TopSheetDialog:wrap";
+
+    public static final String DIALOG_SHOW = "TopSheetDialog:show";
+
+    private TopSheetTrace() {
+    }
+
+    /**
+     * Sets whether the top sheets emit their trace sections.
+     *
+     * @param enabled Whether to emit the trace sections.
+     */
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    /**
+     * Gets whether the top sheets emit their trace sections.
+     *
+     * @return Whether the trace sections are emitted.
+     */
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * Begins a section if tracing is enabled.
+     *
+     * @return Whether a section was begun, to be passed to {@link #end(boolean)}. Sections stay
+     * balanced when tracing is turned on or off in between, e.g. by a sheet callback.
+     */
+    static boolean begin(String sectionName) {
+        if (sEnabled) {
+            Trace.beginSection(sectionName);
+            return true;
+        }
+        return false;
+    }
+
+    static void end(boolean begun) {
+        if (begun) {
+            Trace.endSection();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.github.techisfun.android.topsheet;
+
+import android.content.ComponentCallbacks2;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewParent;
+
+import java.util.ArrayList;
+
+import androidx.annotation.LayoutRes;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * A pool of inflated top sheet contents, keyed by layout resource id, shared by the
+ * {@link TopSheetDialog}s of a scope (typically an activity). A dialog returns its content to the
+ * pool when it is dismissed, and the next dialog showing the same layout reuses it instead of
+ * inflating it again. The content is reused as is, so a {@code RecyclerView} in it keeps its
+ * ViewHolders.
+ * <p>
+ * Pooled views keep a reference to the {@link android.content.Context} they were inflated with:
+ * do not share a pool across activities, and {@link #clear()} it when its scope is destroyed.
+ * <p>
+ * The pool is capped by its number of views rather than by their memory, as the size of a view
+ * hierarchy cannot be measured cheaply. Forward the memory pressure of the scope with
+ * {@link #trimMemory(int)} so that the pool is emptied when the system runs low on memory.
+ */
+public class TopSheetViewPool {
+
+    /**
+     * The default maximum number of views kept by a pool.
+     */
+    public static final int DEFAULT_MAX_SIZE = 4;
+
+    private final int mMaxSize;
+
+    // Oldest first
+    private final ArrayList<Entry> mEntries = new ArrayList<>();
+
+    public TopSheetViewPool() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param maxSize The maximum number of views kept by the pool. When it is exceeded, the least
+     *                recently released views are evicted.
+     */
+    public TopSheetViewPool(int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Illegal max size: " + maxSize);
+        }
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Takes a view inflated from {@code layoutResId} out of the pool.
+     *
+     * @param layoutResId The layout resource id the view was inflated from.
+     * @return The most recently released view for {@code layoutResId}, or null if there is none.
+     */
+    @Nullable
+    public View acquire(@LayoutRes int layoutResId) {
+        for (int i = mEntries.size() - 1; i >= 0; i--) {
+            if (mEntries.get(i).mLayoutResId == layoutResId) {
+                return mEntries.remove(i).mView;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Puts a view back in the pool, detaching it from its parent.
+     *
+     * @param layoutResId The layout resource id the view was inflated from.
+     * @param view        The view to be reused.
+     */
+    public void release(@LayoutRes int layoutResId, @NonNull View view) {
+        ViewParent parent = view.getParent();
+        if (parent instanceof ViewGroup) {
+            ((ViewGroup) parent).removeView(view);
+        }
+        if (mMaxSize == 0) {
+            return;
+        }
+        while (mEntries.size() >= mMaxSize) {
+            mEntries.remove(0);
+        }
+        mEntries.add(new Entry(layoutResId, view));
+    }
+
+    /**
+     * Gets the number of views in the pool.
+     *
+     * @return The number of views in the pool.
+     */
+    public int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Releases the pooled views when memory is needed, typically called from
+     * {@link ComponentCallbacks2#onTrimMemory(int)}. The views are kept while the UI is merely
+     * hidden, so that they can be reused when the user comes back.
+     *
+     * @param level The trim memory level, one of the {@code ComponentCallbacks2.TRIM_MEMORY_*}
+     *              values.
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                && level < ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN)) {
+            clear();
+        }
+    }
+
+    /**
+     * Removes all the views from the pool.
+     */
+    public void clear() {
+        mEntries.clear();
+    }
+
+    private static class Entry {
+
+        @LayoutRes
+        final int mLayoutResId;
+
+        final View mView;
+
+        Entry(@LayoutRes int layoutResId, View view) {
+            mLayoutResId = layoutResId;
+            mView = view;
+        }
+    }
+}
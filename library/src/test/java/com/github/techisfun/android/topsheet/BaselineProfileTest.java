@@ -0,0 +1,172 @@
+package com.github.techisfun.android.topsheet;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks every rule of the baseline profile against the compiled classes of the library, so that
+ * renaming a profiled method or changing its signature fails the build instead of silently
+ * dropping it from the profile.
+ */
+public class BaselineProfileTest {
+
+    private static final File PROFILE = new File("src/main/baseline-prof.txt");
+
+    private static final Pattern RULE =
+            Pattern.compile("^[HSP]*L([^;]+);(?:->([^(]+)\\(([^)]*)\\)(.+))?$");
+
+    @Test
+    public void everyRuleMatchesTheLibrary() throws IOException {
+        List<String> errors = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new FileReader(PROFILE));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String error = check(line);
+                if (error != null) {
+                    errors.add(error + ": " + line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        assertTrue("Baseline profile does not match the library:\n" + join(errors),
+                errors.isEmpty());
+    }
+
+    /**
+     * @return Why {@code rule} does not match the library, or null if it does.
+     */
+    private static String check(String rule) {
+        Matcher matcher = RULE.matcher(rule);
+        if (!matcher.matches()) {
+            return "Malformed rule";
+        }
+        Class<?> owner;
+        try {
+            owner = loadClass(matcher.group(1));
+        } catch (ClassNotFoundException e) {
+            return "Unknown class";
+        }
+        String name = matcher.group(2);
+        if (name == null) {
+            return null;
+        }
+        Class<?>[] parameters;
+        Class<?> returnType;
+        try {
+            parameters = parseTypes(matcher.group(3));
+            Class<?>[] returnTypes = parseTypes(matcher.group(4));
+            if (returnTypes.length != 1) {
+                return "Malformed return type";
+            }
+            returnType = returnTypes[0];
+        } catch (ClassNotFoundException e) {
+            return "Unknown type " + e.getMessage();
+        }
+        if (name.equals("<init>")) {
+            for (Constructor<?> constructor : owner.getDeclaredConstructors()) {
+                if (Arrays.equals(constructor.getParameterTypes(), parameters)) {
+                    return returnType == void.class ? null : "Constructor not returning void";
+                }
+            }
+            return "Unknown constructor";
+        }
+        // Only the methods declared by the class itself, not those of nested classes
+        for (Method method : owner.getDeclaredMethods()) {
+            if (method.getName().equals(name)
+                    && Arrays.equals(method.getParameterTypes(), parameters)
+                    && method.getReturnType() == returnType) {
+                return null;
+            }
+        }
+        return "Unknown method";
+    }
+
+    /**
+     * Parses a sequence of type descriptors, e.g. {@code I[ILandroid/view/View;}.
+     */
+    private static Class<?>[] parseTypes(String descriptors) throws ClassNotFoundException {
+        List<Class<?>> types = new ArrayList<>();
+        int i = 0;
+        while (i < descriptors.length()) {
+            int dimensions = 0;
+            while (descriptors.charAt(i) == '[') {
+                dimensions++;
+                i++;
+            }
+            Class<?> type;
+            char c = descriptors.charAt(i);
+            if (c == 'L') {
+                int end = descriptors.indexOf(';', i);
+                type = loadClass(descriptors.substring(i + 1, end));
+                i = end + 1;
+            } else {
+                type = primitive(c);
+                i++;
+            }
+            for (int d = 0; d < dimensions; d++) {
+                type = Array.newInstance(type, 0).getClass();
+            }
+            types.add(type);
+        }
+        return types.toArray(new Class<?>[types.size()]);
+    }
+
+    private static Class<?> primitive(char descriptor) throws ClassNotFoundException {
+        switch (descriptor) {
+            case 'Z':
+                return boolean.class;
+            case 'B':
+                return byte.class;
+            case 'C':
+                return char.class;
+            case 'S':
+                return short.class;
+            case 'I':
+                return int.class;
+            case 'J':
+                return long.class;
+            case 'F':
+                return float.class;
+            case 'D':
+                return double.class;
+            case 'V':
+                return void.class;
+            default:
+                throw new ClassNotFoundException(String.valueOf(descriptor));
+        }
+    }
+
+    private static Class<?> loadClass(String internalName) throws ClassNotFoundException {
+        // Not initialized, the static initializers of Android classes cannot run on the JVM
+        return Class.forName(internalName.replace('/', '.'), false,
+                BaselineProfileTest.class.getClassLoader());
+    }
+
+    private static String join(List<String> lines) {
+        StringBuilder builder = new StringBuilder();
+        for (String line : lines) {
+            builder.append(line).append('\n');
+        }
+        return builder.toString();
+    }
+}
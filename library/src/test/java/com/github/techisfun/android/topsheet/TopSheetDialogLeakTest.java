@@ -0,0 +1,65 @@
+package com.github.techisfun.android.topsheet;
+
+import android.app.Activity;
+import android.os.Looper;
+import android.widget.TextView;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowDialog;
+
+import java.lang.ref.WeakReference;
+
+import static org.junit.Assert.assertNull;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Checks that a dismissed {@link TopSheetDialog} does not stay reachable through its behavior,
+ * its settle runnables or the callbacks it installed.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class TopSheetDialogLeakTest {
+
+    private static final int MAX_GC_ATTEMPTS = 10;
+
+    @Test
+    public void dismissedDialogAndContentAreCollected() {
+        Activity activity = Robolectric.buildActivity(Activity.class).setup().get();
+        WeakReference<?>[] refs = showAndDismiss(activity);
+        // Robolectric keeps the latest shown dialog in a static field
+        ShadowDialog.reset();
+
+        for (int i = 0; i < MAX_GC_ATTEMPTS && (refs[0].get() != null || refs[1].get() != null);
+             i++) {
+            Runtime.getRuntime().gc();
+            System.runFinalization();
+        }
+        assertNull("The dismissed dialog is still reachable", refs[0].get());
+        assertNull("The content of the dismissed dialog is still reachable", refs[1].get());
+    }
+
+    /**
+     * Shows a dialog, starts a settle and dismisses the dialog in the middle of it. This is done
+     * in a separate method, so that no local variable keeps them reachable.
+     *
+     * @return Weak references to the dialog and to its content.
+     */
+    private static WeakReference<?>[] showAndDismiss(Activity activity) {
+        TopSheetDialog dialog = new TopSheetDialog(activity);
+        TextView content = new TextView(activity);
+        content.setText("Content");
+        dialog.setContentView(content);
+        dialog.show();
+        shadowOf(Looper.getMainLooper()).idle();
+        dialog.getBehavior().setState(TopSheetBehavior.STATE_EXPANDED);
+        dialog.dismiss();
+        shadowOf(Looper.getMainLooper()).idle();
+        return new WeakReference<?>[]{
+                new WeakReference<>(dialog), new WeakReference<>(content)
+        };
+    }
+}
@@ -0,0 +1,128 @@
+package com.github.techisfun.android.topsheet;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.view.MotionEvent;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
+import android.widget.LinearLayout;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import androidx.coordinatorlayout.widget.CoordinatorLayout;
+import androidx.core.widget.NestedScrollView;
+import androidx.test.core.app.ApplicationProvider;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Times {@link TopSheetBehavior#onInterceptTouchEvent} with the former
+ * {@link CoordinatorLayout#isPointInChildBounds} hit test and with the bounds cached on
+ * {@link MotionEvent#ACTION_DOWN}. Timing-sensitive, so it is excluded from the regular unit
+ * tests and only runs with {@code -Pbenchmark}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class TopSheetHitTestBenchmark {
+
+    private static final int WIDTH = 1080;
+
+    private static final int HEIGHT = 1920;
+
+    private static final int SHEET_HEIGHT = 1200;
+
+    /**
+     * Depth of the containers around the scrolling child, as in a typical sheet layout.
+     */
+    private static final int DEPTH = 6;
+
+    private static final int WARMUP = 20000;
+
+    private static final int ITERATIONS = 200000;
+
+    private CoordinatorLayout mParent;
+
+    private FrameLayout mSheet;
+
+    private TopSheetBehavior<FrameLayout> mBehavior;
+
+    @Before
+    public void setUp() {
+        Context context = ApplicationProvider.getApplicationContext();
+        mParent = new CoordinatorLayout(context);
+        mSheet = new FrameLayout(context);
+        ViewGroup container = mSheet;
+        for (int i = 0; i < DEPTH; i++) {
+            LinearLayout layout = new LinearLayout(context);
+            layout.setOrientation(LinearLayout.VERTICAL);
+            layout.setPadding(8, 8, 8, 8);
+            container.addView(layout, new ViewGroup.LayoutParams(
+                    ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
+            container = layout;
+        }
+        NestedScrollView scroll = new NestedScrollView(context);
+        scroll.addView(new View(context), new ViewGroup.LayoutParams(
+                ViewGroup.LayoutParams.MATCH_PARENT, 4 * SHEET_HEIGHT));
+        container.addView(scroll, new ViewGroup.LayoutParams(
+                ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
+
+        mBehavior = new TopSheetBehavior<>(context, null);
+        mBehavior.setState(TopSheetBehavior.STATE_EXPANDED);
+        CoordinatorLayout.LayoutParams lp = new CoordinatorLayout.LayoutParams(
+                ViewGroup.LayoutParams.MATCH_PARENT, SHEET_HEIGHT);
+        lp.setBehavior(mBehavior);
+        mParent.addView(mSheet, lp);
+        mParent.measure(View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(HEIGHT, View.MeasureSpec.EXACTLY));
+        mParent.layout(0, 0, WIDTH, HEIGHT);
+    }
+
+    @Test
+    public void interceptTouchEvent() {
+        long descendant = timeGesture(true);
+        long cached = timeGesture(false);
+        System.out.println(String.format("onInterceptTouchEvent per event: "
+                        + "isPointInChildBounds %d ns, cached bounds %d ns",
+                descendant / ITERATIONS, cached / ITERATIONS));
+    }
+
+    /**
+     * Times the {@link MotionEvent#ACTION_MOVE}s of a gesture over the scrolling child, within
+     * the touch slop so that nothing is captured and every event takes the same path.
+     *
+     * @return The total time of the timed events, in nanoseconds.
+     */
+    private long timeGesture(boolean descendantHitTest) {
+        mBehavior.mDescendantHitTest = descendantHitTest;
+        int x = WIDTH / 2;
+        int y = SHEET_HEIGHT / 2;
+        long downTime = SystemClock.uptimeMillis();
+        MotionEvent down = MotionEvent.obtain(downTime, downTime, MotionEvent.ACTION_DOWN, x, y, 0);
+        mBehavior.onInterceptTouchEvent(mParent, mSheet, down);
+        down.recycle();
+        int intercepted = 0;
+        long start = 0;
+        for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+            if (i == WARMUP) {
+                start = System.nanoTime();
+            }
+            MotionEvent move = MotionEvent.obtain(downTime, downTime + i, MotionEvent.ACTION_MOVE,
+                    x + (i & 1), y, 0);
+            intercepted += mBehavior.onInterceptTouchEvent(mParent, mSheet, move) ? 1 : 0;
+            move.recycle();
+        }
+        long time = System.nanoTime() - start;
+        MotionEvent up = MotionEvent.obtain(downTime, downTime + WARMUP + ITERATIONS,
+                MotionEvent.ACTION_UP, x, y, 0);
+        mBehavior.onInterceptTouchEvent(mParent, mSheet, up);
+        up.recycle();
+        // Both hit tests must take the same decisions
+        assertEquals(0, intercepted);
+        return time;
+    }
+}
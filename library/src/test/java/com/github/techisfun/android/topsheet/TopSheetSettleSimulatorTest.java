@@ -0,0 +1,355 @@
+package com.github.techisfun.android.topsheet;
+
+import android.app.Activity;
+import android.content.Context;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.MotionEvent;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.LinearLayout;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.android.controller.ActivityController;
+import org.robolectric.annotation.Config;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import androidx.coordinatorlayout.widget.CoordinatorLayout;
+import androidx.core.view.ViewCompat;
+import androidx.core.widget.NestedScrollView;
+
+import static com.github.techisfun.android.topsheet.TopSheetBehavior.STATE_COLLAPSED;
+import static com.github.techisfun.android.topsheet.TopSheetBehavior.STATE_DRAGGING;
+import static com.github.techisfun.android.topsheet.TopSheetBehavior.STATE_EXPANDED;
+import static com.github.techisfun.android.topsheet.TopSheetBehavior.STATE_HIDDEN;
+import static com.github.techisfun.android.topsheet.TopSheetBehavior.STATE_SETTLING;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Runs seeded random drags and nested scrolls through a laid out {@link TopSheetBehavior}, with
+ * both its own {@code ViewDragHelper} and the shared {@link TopSheetEngine}. The touch events are
+ * dispatched to the {@link CoordinatorLayout}, so that the gestures go through the real intercept,
+ * touch and nested scrolling callbacks, and frames are run from a fake clock. Every gesture must
+ * end in a stable state at the offset of that state, within a bounded number of frames.
+ * <p>
+ * A summary of the states the gestures resolved to is printed for each scenario.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class TopSheetSettleSimulatorTest {
+
+    private static final long SEED = 0x70b5ee7L;
+
+    private static final int GESTURES = 40;
+
+    private static final int FRAME_MS = 16;
+
+    /**
+     * A settle lasts at most {@link TopSheetSettle#MAX_SETTLE_DURATION}, plus the frame that
+     * reports its end.
+     */
+    private static final int MAX_SETTLE_FRAMES = TopSheetSettle.MAX_SETTLE_DURATION / FRAME_MS + 2;
+
+    /**
+     * A fling of the content carries on moving the sheet for a few seconds at most, then the
+     * sheet settles.
+     */
+    private static final int MAX_FLING_FRAMES = 5000 / FRAME_MS + MAX_SETTLE_FRAMES;
+
+    private static final int HANDLE_HEIGHT = 24;
+
+    private static final int[] HEIGHTS = {1, 120, 300};
+
+    @Test
+    public void gesturesSettleToAStableState() {
+        Random random = new Random(SEED);
+        for (int engine = 0; engine < 2; engine++) {
+            for (int height : HEIGHTS) {
+                // Peek heights of 0, within the sheet, equal to its height and beyond it
+                for (int peekHeight : new int[]{0, height / 2, height, height + 50}) {
+                    for (int flags = 0; flags < 4; flags++) {
+                        Sheet sheet = new Sheet(height, peekHeight, (flags & 1) != 0,
+                                (flags & 2) != 0, engine != 0, random);
+                        for (int i = 0; i < GESTURES; i++) {
+                            sheet.gesture(random);
+                        }
+                        System.out.println(sheet.summary());
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void flingUpHidesTheSheet() {
+        Random random = new Random(SEED);
+        for (int engine = 0; engine < 2; engine++) {
+            for (int nested = 0; nested < 2; nested++) {
+                Sheet sheet = new Sheet(300, 100, true, false, engine != 0, random);
+                sheet.setState(STATE_COLLAPSED);
+                // From the collapsed offset of -200, on the handle or on the content
+                int y = nested != 0 ? 50 : 90;
+                int frames = sheet.swipe(y, -20, 8, 5);
+                assertEquals(sheet + " not hidden by a fling", STATE_HIDDEN, sheet.mState);
+                sheet.checkStable(frames, MAX_FLING_FRAMES);
+            }
+        }
+    }
+
+    private static void advance(long ms) {
+        shadowOf(Looper.getMainLooper()).idleFor(ms, TimeUnit.MILLISECONDS);
+    }
+
+    private static final class Sheet extends TopSheetBehavior.TopSheetCallback {
+
+        final int mHeight;
+
+        final int mPeekHeight;
+
+        final boolean mHideable;
+
+        final boolean mSkipCollapsed;
+
+        final boolean mSharedEngine;
+
+        final int mMinOffset;
+
+        final CoordinatorLayout mParent;
+
+        final LinearLayout mView;
+
+        final NestedScrollView mScroll;
+
+        final View mHandle;
+
+        final TopSheetBehavior<LinearLayout> mBehavior;
+
+        int mState;
+
+        boolean mDragged;
+
+        final int[] mEndStates = new int[3];
+
+        int mDrags;
+
+        int mNestedScrolls;
+
+        int mMaxFrames;
+
+        Sheet(int height, int peekHeight, boolean hideable, boolean skipCollapsed,
+              boolean sharedEngine, Random random) {
+            mHeight = height;
+            mPeekHeight = peekHeight;
+            mHideable = hideable;
+            mSkipCollapsed = skipCollapsed;
+            mSharedEngine = sharedEngine;
+            mMinOffset = TopSheetSettle.minOffset(height, peekHeight);
+
+            ActivityController<Activity> controller = Robolectric.buildActivity(Activity.class);
+            Context context = controller.create().get();
+            mParent = new CoordinatorLayout(context);
+            mView = new LinearLayout(context);
+            mView.setOrientation(LinearLayout.VERTICAL);
+            mScroll = new NestedScrollView(context);
+            mScroll.addView(new View(context), new ViewGroup.LayoutParams(
+                    ViewGroup.LayoutParams.MATCH_PARENT, 1));
+            mView.addView(mScroll, new LinearLayout.LayoutParams(
+                    ViewGroup.LayoutParams.MATCH_PARENT, 0, 1));
+            // Touches on the handle drag the sheet, those on the content scroll it
+            mHandle = new View(context);
+            mView.addView(mHandle, new LinearLayout.LayoutParams(
+                    ViewGroup.LayoutParams.MATCH_PARENT, Math.min(HANDLE_HEIGHT, height)));
+
+            mBehavior = new TopSheetBehavior<>(context, null);
+            mBehavior.setPeekHeight(peekHeight);
+            mBehavior.setHideable(hideable);
+            mBehavior.setSkipCollapsed(skipCollapsed);
+            mBehavior.setUseSharedEngine(sharedEngine);
+            mBehavior.setTopSheetCallback(this);
+            mState = randomStableState(random);
+            mBehavior.setState(mState);
+            CoordinatorLayout.LayoutParams lp = new CoordinatorLayout.LayoutParams(
+                    ViewGroup.LayoutParams.MATCH_PARENT, height);
+            lp.setBehavior(mBehavior);
+            mParent.addView(mView, lp);
+            controller.get().setContentView(mParent);
+            controller.start().resume().visible();
+            advance(FRAME_MS);
+            assertEquals(this + " not laid out", height, mView.getHeight());
+            checkStable(0, 0);
+        }
+
+        /**
+         * Runs a random gesture, sometimes preceded by a change of state.
+         */
+        void gesture(Random random) {
+            if (random.nextInt(4) == 0) {
+                setState(randomStableState(random));
+            }
+            int moves = 1 + random.nextInt(30);
+            boolean nested = random.nextBoolean() && contentRows() > 0;
+            int frames;
+            if (nested) {
+                mNestedScrolls++;
+                frames = randomSwipe(random, top(mScroll), contentRows(), moves);
+            } else {
+                if (handleRows() <= 0) {
+                    // Out of sight, nothing to touch
+                    setState(STATE_EXPANDED);
+                }
+                mDrags++;
+                frames = randomSwipe(random, top(mHandle), handleRows(), moves);
+            }
+            // A fling of the content never hides the sheet, so it may still collapse it
+            if (!nested && mDragged && mHideable && mSkipCollapsed) {
+                assertTrue(this + " collapsed although skipCollapsed is set",
+                        mState != STATE_COLLAPSED);
+            }
+            checkStable(frames, MAX_FLING_FRAMES);
+            mEndStates[mState == STATE_EXPANDED ? 0 : (mState == STATE_COLLAPSED ? 1 : 2)]++;
+            mMaxFrames = Math.max(mMaxFrames, frames);
+        }
+
+        void setState(int state) {
+            mBehavior.setState(state);
+            int frames = awaitStable();
+            assertEquals(this + " did not reach the requested state", state, mState);
+            checkStable(frames, MAX_SETTLE_FRAMES);
+        }
+
+        /**
+         * Swipes with random moves, starting on the visible rows of a child of the sheet.
+         */
+        private int randomSwipe(Random random, int childTop, int visibleRows, int moves) {
+            int x = mParent.getWidth() / 2;
+            int y = Math.max(0, childTop) + random.nextInt(visibleRows);
+            long downTime = SystemClock.uptimeMillis();
+            mDragged = false;
+            dispatch(downTime, MotionEvent.ACTION_DOWN, x, y);
+            for (int i = 0; i < moves; i++) {
+                advance(1 + random.nextInt(20));
+                y += random.nextInt(161) - 80;
+                dispatch(downTime, MotionEvent.ACTION_MOVE, x, y);
+            }
+            advance(1 + random.nextInt(20));
+            dispatch(downTime, MotionEvent.ACTION_UP, x, y);
+            return awaitStable();
+        }
+
+        /**
+         * Swipes from {@code y} with regular moves of {@code dy} every {@code intervalMs}.
+         *
+         * @return The number of frames it took the sheet to settle.
+         */
+        int swipe(int y, int dy, int moves, int intervalMs) {
+            int x = mParent.getWidth() / 2;
+            long downTime = SystemClock.uptimeMillis();
+            mDragged = false;
+            dispatch(downTime, MotionEvent.ACTION_DOWN, x, y);
+            for (int i = 0; i < moves; i++) {
+                advance(intervalMs);
+                y += dy;
+                dispatch(downTime, MotionEvent.ACTION_MOVE, x, y);
+            }
+            dispatch(downTime, MotionEvent.ACTION_UP, x, y);
+            return awaitStable();
+        }
+
+        private void dispatch(long downTime, int action, int x, int y) {
+            MotionEvent event = MotionEvent.obtain(downTime, SystemClock.uptimeMillis(), action,
+                    x, y, 0);
+            mParent.dispatchTouchEvent(event);
+            event.recycle();
+        }
+
+        /**
+         * Runs frames until the sheet and its content stopped moving.
+         *
+         * @return The number of frames that were run.
+         */
+        private int awaitStable() {
+            int frames = 0;
+            while (mState == STATE_DRAGGING || mState == STATE_SETTLING
+                    || mScroll.hasNestedScrollingParent(ViewCompat.TYPE_NON_TOUCH)) {
+                assertTrue(this + " still moving after " + frames + " frames",
+                        frames <= MAX_FLING_FRAMES);
+                advance(FRAME_MS);
+                // Scrolls are computed when drawing, which does not happen here
+                mScroll.computeScroll();
+                frames++;
+            }
+            return frames;
+        }
+
+        private int top(View child) {
+            return mView.getTop() + child.getTop();
+        }
+
+        private int handleRows() {
+            return top(mHandle) + mHandle.getHeight() - Math.max(0, top(mHandle));
+        }
+
+        private int contentRows() {
+            return top(mScroll) + mScroll.getHeight() - Math.max(0, top(mScroll));
+        }
+
+        private int randomStableState(Random random) {
+            int[] states = mHideable
+                    ? new int[]{STATE_EXPANDED, STATE_COLLAPSED, STATE_HIDDEN}
+                    : new int[]{STATE_EXPANDED, STATE_COLLAPSED};
+            return states[random.nextInt(states.length)];
+        }
+
+        void checkStable(int frames, int maxFrames) {
+            assertTrue(this + " took " + frames + " frames to settle", frames <= maxFrames);
+            assertEquals(this + " out of sync with its callback", mState, mBehavior.getState());
+            assertTrue(this + " ended in an intermediate state",
+                    mState == STATE_EXPANDED || mState == STATE_COLLAPSED
+                            || mState == STATE_HIDDEN);
+            if (!mHideable) {
+                assertTrue(this + " hidden although not hideable", mState != STATE_HIDDEN);
+            }
+            assertEquals(this + " is not at the offset of its state",
+                    TopSheetSettle.topForState(mState, mMinOffset, 0, mHeight), mView.getTop());
+        }
+
+        @Override
+        public void onStateChanged(@NonNull View topSheet, int newState) {
+            mState = newState;
+            if (newState == STATE_DRAGGING) {
+                mDragged = true;
+            }
+        }
+
+        @Override
+        public void onSlide(@NonNull View topSheet, float slideOffset) {
+            assertFalse(this + " has a non finite slide offset",
+                    Float.isNaN(slideOffset) || Float.isInfinite(slideOffset));
+            int top = topSheet.getTop();
+            int low = mHideable ? -mHeight : mMinOffset;
+            assertTrue(this + " is out of its range", top <= 0 && top >= low);
+        }
+
+        String summary() {
+            return toString() + ": " + mDrags + " drags, " + mNestedScrolls + " nested scrolls -> "
+                    + mEndStates[0] + " expanded, " + mEndStates[1] + " collapsed, "
+                    + mEndStates[2] + " hidden, at most " + mMaxFrames + " frames";
+        }
+
+        @Override
+        public String toString() {
+            return "Sheet{height=" + mHeight + ", peekHeight=" + mPeekHeight + ", hideable="
+                    + mHideable + ", skipCollapsed=" + mSkipCollapsed + ", sharedEngine="
+                    + mSharedEngine + ", state=" + mState + ", top=" + mView.getTop() + "}";
+        }
+    }
+}